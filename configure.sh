@@ -69,7 +69,7 @@ fi;
 
 echo "MAIN = be/nikiroo/jvcard/launcher/Main" > Makefile
 echo "MORE = $NET $TUI" >> Makefile
-echo "TEST = " >> Makefile
+echo "TEST = be/nikiroo/jvcard/parsers/Vcard21ParserBenchmark" >> Makefile
 echo "TEST_PARAMS = $cols $ok $ko" >> Makefile
 echo "NAME = jvcard" >> Makefile
 echo "PREFIX = $PREFIX" >> Makefile
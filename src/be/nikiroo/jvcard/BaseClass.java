@@ -5,12 +5,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import be.nikiroo.utils.StringUtils;
+import be.nikiroo.jvcard.StateDigest.Algorithm;
 
 /**
  * This class is basically a List with a parent and a "dirty" state check. It
@@ -29,15 +38,109 @@ import be.nikiroo.utils.StringUtils;
  * elements.
  * </p>
  * 
+ * <p>
+ * It is tracked with generations: each change is given a new generation
+ * number which is recorded by the element and its parents, and marking an
+ * element as pristine only records the current generation on this element
+ * (its descendants will check their parents), so it does not have to visit
+ * them.
+ * </p>
+ * 
+ * <p>
+ * The content state of each element is cached and built from the cached
+ * content states of its children (like a Merkle tree); the cache is cleared
+ * along the same path as the dirty state, so only the modified elements and
+ * their parents have to be hashed again.
+ * </p>
+ * 
+ * <p>
+ * The changes (children added, removed or replaced, values changed) can be
+ * followed with a {@link ChangeListener}: the {@link ChangeEvent}s are sent to
+ * the listeners of the changed element and of all its parents, so a listener
+ * on a {@link Card} will see all the changes made to its {@link Contact}s and
+ * their {@link Data}.
+ * </p>
+ * 
+ * <p>
+ * Many changes can be grouped in a batch (see {@link BaseClass#beginBatch()}
+ * ): the dirty state and the {@link ChangeEvent}s only bubble up to the
+ * batched element, and are sent to its parents in one go at the end of the
+ * batch.
+ * </p>
+ * 
+ * <p>
+ * By default, the elements are not thread-safe; they can be made thread-safe
+ * with {@link BaseClass#setThreadSafe(boolean)}, in which case a
+ * read/write lock will be shared by the element and all its descendants, and
+ * the iterators will be weakly consistent.
+ * </p>
+ * 
  * @author niki
  * 
  * @param <E>
  *            the type of the child elements
  */
 public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
-	protected boolean dirty;
+	/** The generation counter, incremented for each change */
+	static private AtomicLong generation = new AtomicLong();
+
+	/** Orders the locks of {@link BaseClass#moveAllTo(BaseClass)} on a tie */
+	static private final Object TIE_LOCK = new Object();
+
+	/** A {@link Lock} that does nothing, for the non thread-safe elements */
+	static private final Lock NO_LOCK = new Lock() {
+		@Override
+		public void lock() {
+		}
+
+		@Override
+		public void lockInterruptibly() {
+		}
+
+		@Override
+		public boolean tryLock() {
+			return true;
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) {
+			return true;
+		}
+
+		@Override
+		public void unlock() {
+		}
+
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException();
+		}
+	};
+
+	/** The generation of the last change to this element or its descendants */
+	private long modified;
+	/** The generation at which this element was last marked pristine */
+	private long pristine;
 	protected BaseClass<?> parent;
 	private List<E> list;
+	/** Lazily built copy of the list sorted by ID, see {@link #getSorted()} */
+	private volatile List<E> sorted;
+	/** Lazily built ID index, see {@link BaseClass#getAllById(String)} */
+	private volatile Map<String, List<E>> index;
+	/** Cached content state hashes (self included), per {@link Algorithm} */
+	private volatile byte[][] contentHashes;
+	/** The {@link ChangeListener}s of this element, NULL if none */
+	private List<ChangeListener> listeners;
+	/** The number of batches in progress, see {@link #beginBatch()} */
+	private int batch;
+	/** Some changes were made during the current batch */
+	private boolean batchChanged;
+	/** The lock held during the current batch */
+	private Lock batchLock;
+	/** The thread which started the current batch */
+	private Thread batchOwner;
+	/** The lock of this element and its descendants, NULL if not thread-safe */
+	private ReadWriteLock lock;
 
 	private Comparator<E> comparator = new Comparator<E>() {
 		@Override
@@ -64,14 +167,32 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 *            the descendants of this object, or NULL if none
 	 */
 	protected BaseClass(List<E> list) {
-		this.list = new ArrayList<E>();
+		this(list, true);
+	}
 
-		if (list != null) {
-			this.list.addAll(list);
+	/**
+	 * Create a new {@link BaseClass} with the items in the given list as its
+	 * descendants.
+	 * 
+	 * @param list
+	 *            the descendants of this object, or NULL if none
+	 * @param copy
+	 *            TRUE to copy the elements from the {@link List}, FALSE to
+	 *            keep them in this very {@link List} (which cannot be managed
+	 *            from outside anymore, see {@link CompactCard})
+	 */
+	BaseClass(List<E> list, boolean copy) {
+		if (copy || list == null) {
+			this.list = new ArrayList<E>();
+			if (list != null)
+				this.list.addAll(list);
+		} else {
+			this.list = list;
 		}
 
-		for (E child : this) {
-			_enter(child, true);
+		for (E child : this.list) {
+			_checkEnter(child);
+			_enter(child, true, true);
 		}
 	}
 
@@ -81,7 +202,178 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 * @return TRUE if it has
 	 */
 	public boolean isDirty() {
-		return dirty;
+		return modified > getPristineGeneration();
+	}
+
+	/**
+	 * Add a {@link ChangeListener} that will be notified of all the changes
+	 * made to this element and its descendants.
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		if (listeners == null)
+			listeners = new CopyOnWriteArrayList<ChangeListener>();
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a {@link ChangeListener} previously added with
+	 * {@link BaseClass#addChangeListener(ChangeListener)}.
+	 * 
+	 * @param listener
+	 *            the listener to remove
+	 * 
+	 * @return TRUE if it was found
+	 */
+	public boolean removeChangeListener(ChangeListener listener) {
+		if (listeners != null)
+			return listeners.remove(listener);
+
+		return false;
+	}
+
+	/**
+	 * Make this element and its descendants thread-safe (or not).
+	 * <p>
+	 * A thread-safe element shares a read/write lock with all its descendants
+	 * (the lock of the outermost thread-safe parent is used); the changes to
+	 * the children and values take the write lock, the reads take the read
+	 * lock, and the iterators work on a copy of the children (they are weakly
+	 * consistent and never fail because of concurrent changes).
+	 * <p>
+	 * The {@link ChangeListener}s are notified while the write lock is held.
+	 * <p>
+	 * This must be set before the element is shared with other threads.
+	 * 
+	 * @param threadSafe
+	 *            TRUE to make it thread-safe
+	 */
+	public void setThreadSafe(boolean threadSafe) {
+		if (threadSafe && lock == null) {
+			lock = new ReentrantReadWriteLock();
+		} else if (!threadSafe) {
+			lock = null;
+		}
+	}
+
+	/**
+	 * Check if this element is thread-safe, either by itself or through one
+	 * of its parents (see {@link BaseClass#setThreadSafe(boolean)}).
+	 * 
+	 * @return TRUE if it is
+	 */
+	public boolean isThreadSafe() {
+		return getLock() != null;
+	}
+
+	/**
+	 * Start a batch of changes on this element.
+	 * <p>
+	 * Until the matching {@link BaseClass#endBatch()}, the changes made to this
+	 * element and its descendants are not reported to its parents nor to the
+	 * {@link ChangeListener}s of this element (the ID index of the children is
+	 * not maintained either, it will be rebuilt when next needed); when the
+	 * batch ends, a single {@link ChangeEvent.Type#BATCH} event is sent.
+	 * <p>
+	 * Batches can be nested, only the outermost one counts.
+	 * <p>
+	 * If the element is thread-safe, the write lock is held until the end of
+	 * the batch, which must be ended by the same thread.
+	 */
+	public void beginBatch() {
+		Lock lock = batchLock == null ? writeLock() : batchLock;
+		lock.lock();
+		batchLock = lock;
+		batchOwner = Thread.currentThread();
+		batch++;
+	}
+
+	/**
+	 * End a batch of changes started with {@link BaseClass#beginBatch()}, and
+	 * report the changes made during the batch (if any) to the parents and the
+	 * {@link ChangeListener}s of this element.
+	 */
+	public void endBatch() {
+		if (batch <= 0) {
+			throw new InvalidParameterException(
+					"You are ending a batch that was never started");
+		}
+
+		if (batchLock != NO_LOCK && batchOwner != Thread.currentThread()) {
+			throw new InvalidParameterException(
+					"You are ending a batch that was started by another thread");
+		}
+
+		Lock lock = batchLock;
+		try {
+			batch--;
+			if (batch == 0) {
+				batchLock = null;
+				batchOwner = null;
+				if (batchChanged) {
+					batchChanged = false;
+					setDirty();
+					fire(this, ChangeEvent.Type.BATCH, parent, this, null);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move all the children of this element to the end of the given element,
+	 * in order, in a single batch (see {@link BaseClass#beginBatch()}).
+	 * <p>
+	 * It takes a time proportional to the number of children, as opposed to
+	 * removing them one by one.
+	 * <p>
+	 * The write locks of both elements are taken in a fixed order, so two
+	 * moves in opposite directions cannot deadlock.
+	 * 
+	 * @param target
+	 *            the element that will receive the children
+	 */
+	public void moveAllTo(BaseClass<E> target) {
+		if (target == this)
+			return;
+
+		int mine = System.identityHashCode(getLock());
+		int theirs = System.identityHashCode(target.getLock());
+		if (mine < theirs) {
+			beginBatch();
+			target.beginBatch();
+		} else if (theirs < mine) {
+			target.beginBatch();
+			beginBatch();
+		} else {
+			// same lock (or none), or two locks with the same hash
+			synchronized (TIE_LOCK) {
+				beginBatch();
+				target.beginBatch();
+			}
+		}
+
+		try {
+			List<E> children = new ArrayList<E>(list);
+
+			beforeChange();
+			target.beforeChange();
+			list.clear();
+			for (E child : children) {
+				_leave(child);
+			}
+
+			target.list.addAll(children);
+			for (E child : children) {
+				target._enter(child, true);
+			}
+		} finally {
+			target.endBatch();
+			endBatch();
+		}
 	}
 
 	/**
@@ -112,8 +404,13 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 		List<E> add = new LinkedList<E>();
 
 		if (!compare(list, add, del, del, add)) {
-			removeAll(del);
-			addAll(add);
+			beginBatch();
+			try {
+				removeAll(del);
+				addAll(add);
+			} finally {
+				endBatch();
+			}
 		}
 	}
 
@@ -124,6 +421,9 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 * 
 	 * If not equals, the differences will be represented by the given
 	 * {@link List}s if they are not NULL.
+	 * 
+	 * The order of the elements is not important, and is not changed (neither
+	 * for <tt>this</tt> nor for <tt>list</tt>).
 	 * <ul>
 	 * <li><tt>added</tt> will represent the elements in <tt>list</tt> but not
 	 * in <tt>this</tt></li>
@@ -153,28 +453,32 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public boolean compare(List<E> list, List<E> added, List<E> removed,
 			List<E> from, List<E> to) {
-		Collections.sort(this.list, comparator);
-
-		List<E> mine = new LinkedList<E>(this.list);
-		List<E> other = new LinkedList<E>(list);
-
-		Collections.sort(other, comparator);
+		List<E> mine = getSorted();
+		List<E> other;
+		if (list instanceof BaseClass) {
+			other = ((BaseClass<E>) list).getSorted();
+		} else {
+			other = new ArrayList<E>(list);
+			Collections.sort(other, comparator);
+		}
 
 		boolean equ = true;
-		E here = mine.size() > 0 ? mine.remove(0) : null;
-		E there = other.size() > 0 ? other.remove(0) : null;
+		int imine = 0;
+		int iother = 0;
+		while (imine < mine.size() || iother < other.size()) {
+			E here = imine < mine.size() ? mine.get(imine) : null;
+			E there = iother < other.size() ? other.get(iother) : null;
 
-		while (here != null || there != null) {
 			if (here == null
 					|| (there != null && comparator.compare(here, there) > 0)) {
 				if (added != null)
 					added.add(there);
-				there = null;
+				iother++;
 				equ = false;
 			} else if (there == null || comparator.compare(here, there) < 0) {
 				if (removed != null)
 					removed.add(here);
-				here = null;
+				imine++;
 				equ = false;
 			} else {
 				// they represent the same item
@@ -185,14 +489,9 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 						to.add(there);
 					equ = false;
 				}
-				here = null;
-				there = null;
+				imine++;
+				iother++;
 			}
-
-			if (here == null && mine.size() > 0)
-				here = mine.remove(0);
-			if (there == null && other.size() > 0)
-				there = other.remove(0);
 		}
 
 		return equ;
@@ -220,6 +519,8 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	/**
 	 * Check if the given instance and this one are equivalent (both objects in
 	 * the same state, all child elements equivalent).
+	 * <p>
+	 * The order of the child elements is not important, and is not changed.
 	 * 
 	 * @param other
 	 *            the other instance
@@ -245,10 +546,11 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 				return false;
 		}
 
-		Collections.sort(list, comparator);
-		Collections.sort(other.list, other.comparator);
-		for (int index = 0; index < size(); index++) {
-			if (!((BaseClass) get(index)).isEquals(other.get(index), false))
+		List<E> mine = getSorted();
+		List<E> others = other.getSorted();
+		for (int index = 0; index < mine.size(); index++) {
+			if (!((BaseClass) mine.get(index))
+					.isEquals(others.get(index), false))
 				return false;
 		}
 
@@ -265,6 +567,12 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 * the state, it can only be used as an ID to check if data are identical.
 	 * </p>
 	 * 
+	 * <p>
+	 * This is the state used by the remote protocol (it is MD5 based); for
+	 * in-process comparisons, see
+	 * {@link BaseClass#getLocalContentState(boolean)}.
+	 * </p>
+	 * 
 	 * @param self
 	 *            also include state information about the current object itself
 	 *            (as opposed to its children)
@@ -273,13 +581,59 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 *         object, i.e., its children included
 	 */
 	public String getContentState(boolean self) {
-		StringBuilder builder = new StringBuilder();
-		buildContentStateRaw(builder, self);
-		return StringUtils.getMd5Hash(builder.toString());
+		return getContentState(self, Algorithm.MD5);
+	}
+
+	/**
+	 * Get the recursive state of the current object like
+	 * {@link BaseClass#getContentState(boolean)}, but with the (faster)
+	 * {@link Algorithm} configured for in-process comparisons (see
+	 * {@link StateDigest#setLocalAlgorithm(Algorithm)}).
+	 * <p>
+	 * It must <b>not</b> be exchanged with another program.
+	 * 
+	 * @param self
+	 *            also include state information about the current object itself
+	 *            (as opposed to its children)
+	 * 
+	 * @return a {@link String} representing the current content state of this
+	 *         object, i.e., its children included
+	 */
+	public String getLocalContentState(boolean self) {
+		return getContentState(self, StateDigest.getLocalAlgorithm());
+	}
+
+	/**
+	 * Get the recursive state of the current object with the given
+	 * {@link Algorithm}.
+	 * 
+	 * @param self
+	 *            also include state information about the current object itself
+	 *            (as opposed to its children)
+	 * @param algorithm
+	 *            the {@link Algorithm} to use
+	 * 
+	 * @return a {@link String} representing the current content state of this
+	 *         object, i.e., its children included
+	 */
+	private String getContentState(boolean self, Algorithm algorithm) {
+		byte[] hash = getContentHash(self, algorithm);
+
+		StringBuilder builder = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return builder.toString();
 	}
 
 	/**
 	 * Return the (first) child element with the given ID or NULL if not found.
+	 * <p>
+	 * The first call will build an index of the children by ID, which will then
+	 * be kept up to date when children enter or leave, so the next lookups are
+	 * done in constant time.
 	 * 
 	 * @param id
 	 *            the id to look for
@@ -287,17 +641,47 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 * @return the child element or NULL
 	 */
 	public E getById(String id) {
-		for (E child : this) {
-			if (id == null) {
-				if (child.getId() == null)
-					return child;
-			} else {
-				if (id.equals(child.getId()))
-					return child;
-			}
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			List<E> children = getIndex().get(id);
+			if (children != null)
+				return children.get(0);
+
+			return null;
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		return null;
+	/**
+	 * Return all the child elements with the given ID, in order.
+	 * <p>
+	 * It uses the same index as {@link BaseClass#getById(String)}, and the
+	 * returned {@link List} is a read-only view on it: it is only valid until
+	 * the next change to the children of this object (or a read-only copy if
+	 * this object is thread-safe).
+	 * 
+	 * @param id
+	 *            the id to look for
+	 * 
+	 * @return the child elements (can be empty, cannot be NULL)
+	 */
+	public List<E> getAllById(String id) {
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			List<E> children = getIndex().get(id);
+			if (children == null)
+				return Collections.emptyList();
+
+			if (lock != NO_LOCK)
+				children = new ArrayList<E>(children);
+
+			return Collections.unmodifiableList(children);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -325,6 +709,16 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 */
 	abstract public String getId();
 
+	/**
+	 * Return a deep copy of this element and all its descendants.
+	 * <p>
+	 * The copy is done in memory (the immutable values are shared), is not
+	 * attached to any parent and is in pristine state.
+	 * 
+	 * @return the copy
+	 */
+	abstract public BaseClass<E> copy();
+
 	/**
 	 * Get the state of the current object, children <b>not included</b>. It
 	 * represents the full state information about this object, but do not check
@@ -343,25 +737,97 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	abstract public String getState();
 
 	/**
-	 * Get the recursive state of the current object, i.e., its children
-	 * included. It represents the full state information about this object's
-	 * children.
+	 * Get the hash of the recursive state of the current object, i.e., its
+	 * children included.
 	 * <p>
-	 * It is not hashed.
+	 * It is computed from the (cached) hashes of the children, so the order of
+	 * the children does not matter; the result is cached when <tt>self</tt> is
+	 * TRUE, until this object or one of its descendants is changed.
 	 * 
-	 * @param builder
-	 *            the {@link StringBuilder} that will represent the current
-	 *            content state of this object, i.e., its children included
 	 * @param self
 	 *            also include state information about the current object itself
 	 *            (as opposed to its children)
+	 * @param algorithm
+	 *            the {@link Algorithm} to use
+	 * 
+	 * @return the hash
 	 */
-	void buildContentStateRaw(StringBuilder builder, boolean self) {
-		Collections.sort(this.list, comparator);
-		if (self)
-			builder.append(getState());
-		for (E child : this) {
-			child.buildContentStateRaw(builder, true);
+	byte[] getContentHash(boolean self, Algorithm algorithm) {
+		byte[][] hashes = contentHashes;
+		if (self && hashes != null && hashes[algorithm.ordinal()] != null)
+			return hashes[algorithm.ordinal()];
+
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			// sum of the children hashes, i.e., independent of their order
+			byte[] sum = new byte[StateDigest.SIZE];
+			for (E child : list) {
+				byte[] hash = child.getContentHash(true, algorithm);
+				int carry = 0;
+				for (int i = StateDigest.SIZE - 1; i >= 0; i--) {
+					carry += (sum[i] & 0xff) + (hash[i] & 0xff);
+					sum[i] = (byte) carry;
+					carry >>= 8;
+				}
+			}
+
+			StateDigest digest = StateDigest.getInstance(algorithm);
+			if (self)
+				updateState(digest);
+			digest.update(sum);
+
+			byte[] hash = digest.digest();
+			if (self) {
+				// never modify a published array (concurrent readers)
+				hashes = contentHashes;
+				if (hashes == null)
+					hashes = new byte[Algorithm.values().length][];
+				else
+					hashes = hashes.clone();
+				hashes[algorithm.ordinal()] = hash;
+				contentHashes = hashes;
+			}
+
+			return hash;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Feed the state of the current object, children <b>not included</b>, to
+	 * the given {@link StateDigest} (see {@link BaseClass#getState()}).
+	 * <p>
+	 * The default implementation simply uses {@link BaseClass#getState()}, but
+	 * subclasses with large values should feed them directly.
+	 * 
+	 * @param digest
+	 *            the {@link StateDigest} to feed
+	 */
+	void updateState(StateDigest digest) {
+		digest.update(getState());
+	}
+
+	/**
+	 * Return a deep copy of the children of this element (see
+	 * {@link BaseClass#copy()}), in order.
+	 * 
+	 * @return the copies
+	 */
+	@SuppressWarnings("unchecked")
+	List<E> copyChildren() {
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			List<E> copies = new ArrayList<E>(list.size());
+			for (E child : list) {
+				copies.add((E) child.copy()); // expected warning
+			}
+
+			return copies;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -380,7 +846,7 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	void getDebugInfo(StringBuilder builder, int depth, int tab) {
 		for (int i = 0; i < tab; i++)
 			builder.append("	");
-		builder.append(getContentState(false) + "	" + getId());
+		builder.append(getLocalContentState(false) + "	" + getId());
 
 		if (depth != 0)
 			builder.append(": [");
@@ -399,26 +865,308 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 		}
 	}
 
+	/**
+	 * Check if a batch of changes is in progress on this element (see
+	 * {@link BaseClass#beginBatch()}).
+	 * 
+	 * @return TRUE if it is
+	 */
+	boolean isInBatch() {
+		return batch > 0;
+	}
+
 	/**
 	 * Notify that this element <i>and all its parent elements</i> has unsaved
 	 * changes.
 	 */
 	void setDirty() {
-		dirty = true;
+		modified = generation.incrementAndGet();
+		contentHashes = null;
+		if (batch > 0) {
+			// will be reported at the end of the batch
+			batchChanged = true;
+		} else if (parent != null) {
+			parent.childDirty(this);
+		}
+	}
+
+	/**
+	 * Notify that this element is about to be changed (before the change is
+	 * made), so its parents can keep a copy of its current state if needed
+	 * (see {@link Card#snapshot()}).
+	 */
+	void beforeChange() {
 		if (parent != null) {
-			parent.setDirty();
+			parent.childBeforeChange(this);
 		}
 	}
 
+	/**
+	 * Notify that the given child element (or one of its descendants) is about
+	 * to be changed; by default, this element is simply considered as about to
+	 * be changed, too.
+	 * 
+	 * @param child
+	 *            the child element
+	 */
+	void childBeforeChange(BaseClass<?> child) {
+		beforeChange();
+	}
+
+	/**
+	 * Notify that the given child element left this element (it is no longer
+	 * in the list, but was not changed yet); by default, nothing is done.
+	 * 
+	 * @param child
+	 *            the child element
+	 */
+	void childLeft(BaseClass<?> child) {
+	}
+
+	/**
+	 * Notify that the given child element (or one of its descendants) has
+	 * unsaved changes; by default, this element and its parents are simply
+	 * marked as dirty, too.
+	 * 
+	 * @param child
+	 *            the child element, which is already marked as dirty
+	 */
+	void childDirty(BaseClass<?> child) {
+		setDirty();
+	}
+
+	/**
+	 * Notify the {@link ChangeListener}s of this element and of its parents of
+	 * a change made to one of the children of this element.
+	 * <p>
+	 * The {@link ChangeEvent} is only created if there is at least one
+	 * listener to notify.
+	 * 
+	 * @param type
+	 *            the kind of change
+	 * @param child
+	 *            the affected child (the new child for
+	 *            {@link ChangeEvent.Type#REPLACE})
+	 * @param old
+	 *            the replaced child for {@link ChangeEvent.Type#REPLACE}, NULL
+	 *            otherwise
+	 */
+	void fireChange(ChangeEvent.Type type, BaseClass<?> child,
+			BaseClass<?> old) {
+		fire(this, type, this, child, old);
+	}
+
+	/**
+	 * Notify the {@link ChangeListener}s of this element and of its parents
+	 * that the value of this element changed.
+	 */
+	void fireValueChanged() {
+		fire(this, ChangeEvent.Type.VALUE, parent, this, null);
+	}
+
+	/**
+	 * Send a new {@link ChangeEvent} to the {@link ChangeListener}s of the
+	 * given element and of its parents, if any.
+	 * <p>
+	 * The parents of an element in the middle of a batch (see
+	 * {@link BaseClass#beginBatch()}) are not notified, and neither is the
+	 * element itself (it will send a {@link ChangeEvent.Type#BATCH} event at
+	 * the end of the batch instead) unless the event is this
+	 * {@link ChangeEvent.Type#BATCH} event.
+	 * 
+	 * @param from
+	 *            the first element to notify, can be NULL
+	 * @param type
+	 *            the kind of change
+	 * @param parent
+	 *            the parent of the affected element, can be NULL
+	 * @param node
+	 *            the affected element
+	 * @param old
+	 *            the replaced element or NULL
+	 */
+	static private void fire(BaseClass<?> from, ChangeEvent.Type type,
+			BaseClass<?> parent, BaseClass<?> node, BaseClass<?> old) {
+		ChangeEvent event = null;
+		for (BaseClass<?> p = from; p != null; p = p.parent) {
+			if (p.batch > 0) {
+				p.batchChanged = true;
+				break;
+			}
+
+			if (p.listeners != null) {
+				if (event == null)
+					event = new ChangeEvent(type, parent, node, old);
+				for (ChangeListener listener : p.listeners) {
+					listener.changed(event);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the generation at which this element was marked pristine, either
+	 * directly or through one of its parents.
+	 * 
+	 * @return the generation
+	 */
+	long getPristineGeneration() {
+		long pristine = this.pristine;
+		for (BaseClass<?> p = parent; p != null; p = p.parent) {
+			pristine = Math.max(pristine, p.pristine);
+		}
+
+		return pristine;
+	}
+
+	/**
+	 * Return the read/write lock shared by this element and its descendants,
+	 * that is, the lock of its outermost thread-safe parent (or itself).
+	 * 
+	 * @return the lock, or NULL if not thread-safe
+	 */
+	private ReadWriteLock getLock() {
+		ReadWriteLock lock = null;
+		for (BaseClass<?> p = this; p != null; p = p.parent) {
+			if (p.lock != null)
+				lock = p.lock;
+		}
+
+		return lock;
+	}
+
+	/**
+	 * Return the read lock to use to read this element and its children.
+	 * 
+	 * @return the lock (a lock that does nothing if not thread-safe)
+	 */
+	Lock readLock() {
+		ReadWriteLock lock = getLock();
+		if (lock != null)
+			return lock.readLock();
+
+		return NO_LOCK;
+	}
+
+	/**
+	 * Return the write lock to use to change this element and its children.
+	 * 
+	 * @return the lock (a lock that does nothing if not thread-safe)
+	 */
+	Lock writeLock() {
+		ReadWriteLock lock = getLock();
+		if (lock != null)
+			return lock.writeLock();
+
+		return NO_LOCK;
+	}
+
+	/**
+	 * Return the children sorted by ID (children with the same ID keep their
+	 * relative order), without changing the order of this {@link List}.
+	 * <p>
+	 * The sorted {@link List} is kept until the next change to the children,
+	 * and must not be modified.
+	 * 
+	 * @return the sorted children
+	 */
+	private List<E> getSorted() {
+		List<E> sorted = this.sorted;
+		if (sorted == null) {
+			Lock lock = readLock();
+			lock.lock();
+			try {
+				sorted = new ArrayList<E>(list);
+				Collections.sort(sorted, comparator);
+				if (cacheSorted())
+					this.sorted = sorted;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		return sorted;
+	}
+
+	/**
+	 * Return the ID index of the children, building it if needed (the read
+	 * lock must be held).
+	 * 
+	 * @return the index
+	 */
+	private Map<String, List<E>> getIndex() {
+		Map<String, List<E>> index = this.index;
+		if (index == null) {
+			index = new HashMap<String, List<E>>();
+			for (E child : list) {
+				indexAdd(index, child);
+			}
+			// only published when complete (concurrent readers)
+			this.index = index;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Add the given child at the end of its ID index entry.
+	 * 
+	 * @param index
+	 *            the index to add to
+	 * @param child
+	 *            the child to add
+	 */
+	static private <E extends BaseClass<?>> void indexAdd(
+			Map<String, List<E>> index, E child) {
+		String id = child.getId();
+		List<E> children = index.get(id);
+		if (children == null) {
+			children = new ArrayList<E>(1);
+			index.put(id, children);
+		}
+
+		children.add(child);
+	}
+
+	/**
+	 * Notify the parent of this element that its ID may have changed, so the
+	 * ID index of the parent (if any) will be rebuilt when next needed.
+	 */
+	void idChanged() {
+		if (parent != null) {
+			parent.childIdChanged(this);
+		}
+	}
+
+	/**
+	 * Notify that the ID of the given child element may have changed, so the
+	 * ID index will be rebuilt when next needed.
+	 * 
+	 * @param child
+	 *            the child element
+	 */
+	void childIdChanged(BaseClass<?> child) {
+		index = null;
+		sorted = null;
+	}
+
+	/**
+	 * Check if the sorted children (see {@link BaseClass#getSorted()}) can be
+	 * kept until the next change; an element which does not keep all its
+	 * children in memory (see {@link CompactCard}) will not want them to be.
+	 * 
+	 * @return TRUE if they can
+	 */
+	boolean cacheSorted() {
+		return true;
+	}
+
 	/**
 	 * Notify this element <i>and all its descendants</i> that it is in pristine
 	 * state (as opposed to dirty).
 	 */
 	void setPristine() {
-		dirty = false;
-		for (E child : this) {
-			child.setPristine();
-		}
+		pristine = generation.get();
 	}
 
 	/**
@@ -432,13 +1180,17 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 	 */
 	void setParent(BaseClass<?> parent) {
 		this.parent = parent;
-		for (E child : this) {
-			child.setParent(this);
+		for (E child : list) {
+			if (child.parent != this)
+				child.setParent(this);
 		}
 	}
 
 	/**
 	 * Escape the given value to VCF standard.
+	 * <p>
+	 * The value is scanned only once, and returned as-is if nothing needs to
+	 * be escaped.
 	 * 
 	 * @param value
 	 *            the value to escape
@@ -449,12 +1201,38 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 		if (value == null)
 			return null;
 
-		return value.replaceAll(",", "\\\\,").replaceAll(";", "\\\\;")
-				.replaceAll("\n", "\\\\n");
+		StringBuilder builder = null;
+		for (int i = 0; i < value.length(); i++) {
+			char car = value.charAt(i);
+			char escaped = 0;
+			if (car == ',' || car == ';') {
+				escaped = car;
+			} else if (car == '\n') {
+				escaped = 'n';
+			}
+
+			if (escaped != 0) {
+				if (builder == null) {
+					builder = new StringBuilder(value.length() + 8);
+					builder.append(value, 0, i);
+				}
+				builder.append('\\').append(escaped);
+			} else if (builder != null) {
+				builder.append(car);
+			}
+		}
+
+		if (builder == null)
+			return value;
+
+		return builder.toString();
 	}
 
 	/**
 	 * Unescape the given value from the VCF standard.
+	 * <p>
+	 * The value is scanned only once, and returned as-is if nothing needs to
+	 * be unescaped.
 	 * 
 	 * @param value
 	 *            the value to unescape
@@ -465,12 +1243,35 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 		if (value == null)
 			return null;
 
-		return value.replaceAll("\\\\,", ",").replaceAll("\\\\;", ";")
-				.replaceAll("\\\\n", "\n");
+		int first = value.indexOf('\\');
+		if (first < 0)
+			return value;
+
+		StringBuilder builder = new StringBuilder(value.length());
+		builder.append(value, 0, first);
+		for (int i = first; i < value.length(); i++) {
+			char car = value.charAt(i);
+			if (car == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(i + 1);
+				if (next == ',' || next == ';') {
+					car = next;
+					i++;
+				} else if (next == 'n') {
+					car = '\n';
+					i++;
+				}
+			}
+
+			builder.append(car);
+		}
+
+		return builder.toString();
 	}
 
 	/**
-	 * Each element that leaves the parent will pass trough here.
+	 * Each element that leaves the parent will pass trough here, once it has
+	 * been removed from the list (the parents may look into the list when
+	 * they are notified of the change, see {@link Contact#setDirty()}).
 	 * 
 	 * @param child
 	 *            the element to remove from this
@@ -481,32 +1282,85 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 					"You are removing this child from its rightful parent, it must be yours to do so");
 		}
 
+		if (batch > 0) {
+			// rebuilt after the batch if needed
+			index = null;
+		} else if (index != null) {
+			String id = child.getId();
+			List<E> children = index.get(id);
+			if (children != null && children.remove(child)) {
+				if (children.isEmpty())
+					index.remove(id);
+			} else {
+				index = null;
+			}
+		}
+
+		sorted = null;
+		childLeft(child);
+		// keep the pristine state inherited from us
+		((BaseClass<?>) child).pristine = child.getPristineGeneration();
 		child.parent = null;
 		setDirty();
 	}
 
 	/**
-	 * Each element that enters the parent will pass trough here.
+	 * Check that the given element can enter this parent, before it is added
+	 * to the list.
 	 * 
 	 * @param child
 	 *            the element to add to this
+	 * 
+	 * @throws InvalidParameterException
+	 *             if the element already has another parent
 	 */
-	private void _enter(E child) {
-		_enter(child, false);
+	private void _checkEnter(E child) {
+		if (child.parent != null && child.parent != this) {
+			throw new InvalidParameterException(
+					"You are stealing this child from its rightful parent, you must remove it first");
+		}
 	}
 
 	/**
-	 * Each element that enters the parent will pass trough here.
+	 * Each element that enters the parent will pass trough here, once it has
+	 * been checked (see {@link BaseClass#_checkEnter(BaseClass)}) and added
+	 * to the list (the parents may look into the list when they are notified
+	 * of the change, see {@link Contact#setDirty()}).
 	 * 
 	 * @param child
 	 *            the element to add to this
+	 * @param append
+	 *            the element was added at the end of the list
 	 */
-	private void _enter(E child, boolean initialLoad) {
-		if (child.parent != null && child.parent != this) {
-			throw new InvalidParameterException(
-					"You are stealing this child from its rightful parent, you must remove it first");
+	private void _enter(E child, boolean append) {
+		_enter(child, append, false);
+	}
+
+	/**
+	 * Each element that enters the parent will pass trough here (see
+	 * {@link BaseClass#_enter(BaseClass, boolean)}).
+	 * 
+	 * @param child
+	 *            the element to add to this
+	 * @param append
+	 *            the element was added at the end of the list
+	 * @param initialLoad
+	 *            this is the initial load of the element, from the constructor
+	 */
+	private void _enter(E child, boolean append, boolean initialLoad) {
+		if (batch > 0) {
+			// rebuilt after the batch if needed
+			index = null;
+		} else if (index != null) {
+			if (!append && index.containsKey(child.getId())) {
+				// we do not know which one comes first anymore
+				index = null;
+			} else {
+				indexAdd(index, child);
+			}
 		}
 
+		sorted = null;
 		child.setParent(this);
 		if (!initialLoad) {
 			setDirty();
@@ -516,48 +1370,88 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 
 	@Override
 	public boolean add(E e) {
-		_enter(e, false);
-		return list.add(e);
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			_checkEnter(e);
+			beforeChange();
+			list.add(e);
+			_enter(e, true);
+			fireChange(ChangeEvent.Type.ADD, e, null);
+			return true;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	@SuppressWarnings("unchecked")
 	public boolean remove(Object o) {
-		if (list.remove(o)) {
-			if (o instanceof BaseClass<?>) {
-				_leave((E) o); // expected warning
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			if (!list.contains(o))
+				return false;
+
+			beforeChange();
+			if (list.remove(o)) {
+				if (o instanceof BaseClass<?>) {
+					_leave((E) o); // expected warning
+					fireChange(ChangeEvent.Type.REMOVE, (E) o, null);
+				}
+				return true;
 			}
-			return true;
-		}
 
-		return false;
+			return false;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public boolean addAll(Collection<? extends E> c) {
-		for (E child : c) {
-			_enter(child);
+		beginBatch();
+		try {
+			return addAll(size(), c);
+		} finally {
+			endBatch();
 		}
-
-		return list.addAll(c);
 	}
 
 	@Override
 	public boolean addAll(int index, Collection<? extends E> c) {
-		for (E child : c) {
-			_enter(child);
-		}
+		beginBatch();
+		try {
+			boolean append = index == size();
+			List<E> children = new ArrayList<E>(c);
+			for (E child : children) {
+				_checkEnter(child);
+			}
+
+			beforeChange();
+			list.addAll(index, children);
+			for (E child : children) {
+				_enter(child, append);
+			}
 
-		return list.addAll(index, c);
+			return !children.isEmpty();
+		} finally {
+			endBatch();
+		}
 	}
 
 	@Override
 	public boolean removeAll(Collection<?> c) {
 		boolean changed = false;
 
-		for (Object o : c) {
-			if (remove(o))
-				changed = true;
+		beginBatch();
+		try {
+			for (Object o : c) {
+				if (remove(o))
+					changed = true;
+			}
+		} finally {
+			endBatch();
 		}
 
 		return changed;
@@ -574,34 +1468,70 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 
 	@Override
 	public void clear() {
-		for (E child : this) {
-			_leave(child);
+		beginBatch();
+		try {
+			List<E> children = new ArrayList<E>(list);
+
+			beforeChange();
+			list.clear();
+			for (E child : children) {
+				_leave(child);
+			}
+		} finally {
+			endBatch();
 		}
-
-		list.clear();
 	}
 
 	@Override
 	public E set(int index, E element) {
-		E child = get(index);
-		if (child != null)
-			_leave(child);
-		_enter(element);
-
-		return list.set(index, element);
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			E child = list.get(index);
+			_checkEnter(element);
+			beforeChange();
+			list.set(index, element);
+			if (child != null)
+				_leave(child);
+			_enter(element, false);
+
+			fireChange(ChangeEvent.Type.REPLACE, element, child);
+			return child;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public void add(int index, E element) {
-		_enter(element);
-		list.add(index, element);
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			_checkEnter(element);
+			beforeChange();
+			boolean append = index == list.size();
+			list.add(index, element);
+			_enter(element, append);
+			fireChange(ChangeEvent.Type.ADD, element, null);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public E remove(int index) {
-		E child = get(index);
-		_leave(child);
-		return list.remove(index);
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			E child = list.get(index);
+			beforeChange();
+			list.remove(index);
+			_leave(child);
+			fireChange(ChangeEvent.Type.REMOVE, child, null);
+			return child;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
@@ -614,11 +1544,20 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 		return listIterator(0);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If this element is thread-safe, the iterator works on a copy of the
+	 * children (it is weakly consistent): {@link ListIterator#remove()} and
+	 * {@link ListIterator#set(Object)} are applied to this element, but
+	 * {@link ListIterator#add(Object)} is not supported.
+	 */
 	@Override
 	public ListIterator<E> listIterator(int index) {
 		final int i = index;
+		final boolean copy = isThreadSafe();
 		return new ListIterator<E>() {
-			ListIterator<E> base = list.listIterator(i);
+			ListIterator<E> base = (copy ? copyList() : list).listIterator(i);
 			E last;
 
 			@Override
@@ -655,68 +1594,159 @@ public abstract class BaseClass<E extends BaseClass<?>> implements List<E> {
 
 			@Override
 			public void remove() {
+				if (copy) {
+					base.remove();
+					BaseClass.this.remove(last);
+					return;
+				}
+
+				beforeChange();
 				base.remove();
 				_leave(last);
+				fireChange(ChangeEvent.Type.REMOVE, last, null);
 			}
 
 			@Override
 			public void set(E e) {
+				if (copy) {
+					Lock lock = writeLock();
+					lock.lock();
+					try {
+						int index = list.indexOf(last);
+						if (index >= 0)
+							BaseClass.this.set(index, e);
+					} finally {
+						lock.unlock();
+					}
+
+					base.set(e);
+					last = e;
+					return;
+				}
+
+				_checkEnter(e);
+				beforeChange();
 				base.set(e);
 				_leave(last);
-				_enter(e);
+				_enter(e, false);
+				fireChange(ChangeEvent.Type.REPLACE, e, last);
 			}
 
 			@Override
 			public void add(E e) {
+				if (copy)
+					throw new UnsupportedOperationException();
+
+				_checkEnter(e);
+				beforeChange();
+				boolean append = !base.hasNext();
 				base.add(e);
-				_enter(e);
+				_enter(e, append);
+				fireChange(ChangeEvent.Type.ADD, e, null);
 			}
 		};
 	}
 
+	/**
+	 * Return a copy of the children list.
+	 * 
+	 * @return the copy
+	 */
+	private List<E> copyList() {
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return new ArrayList<E>(list);
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
 	public Object[] toArray() {
-		return list.toArray();
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.toArray();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public <T> T[] toArray(T[] a) {
-		return list.toArray(a);
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.toArray(a);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public int size() {
-		return list.size();
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.size();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return list.isEmpty();
+		return size() == 0;
 	}
 
 	@Override
 	public boolean contains(Object o) {
-		return list.contains(o);
+		return indexOf(o) >= 0;
 	}
 
 	@Override
 	public boolean containsAll(Collection<?> c) {
-		return list.containsAll(c);
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.containsAll(c);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public E get(int index) {
-		return list.get(index);
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.get(index);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public int indexOf(Object o) {
-		return list.indexOf(o);
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.indexOf(o);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public int lastIndexOf(Object o) {
-		return list.lastIndexOf(o);
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return list.lastIndexOf(o);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
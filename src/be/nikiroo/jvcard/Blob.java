@@ -0,0 +1,95 @@
+package be.nikiroo.jvcard;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+
+import be.nikiroo.utils.StringUtils;
+
+/**
+ * The immutable value of a binary {@link Data} (PHOTO, LOGO, SOUND...), as
+ * stored in the {@link BlobStore}: the same {@link Blob} is shared by all the
+ * {@link Data} with the same binary value.
+ * <p>
+ * The value is kept in its (base64) text form, and only decoded when the
+ * bytes are needed.
+ * 
+ * @author niki
+ */
+public class Blob {
+	private String value;
+	private String hash;
+	/** The decoded value, kept as long as memory allows */
+	private volatile SoftReference<byte[]> bytes;
+
+	/**
+	 * Create a new {@link Blob}.
+	 * 
+	 * @param value
+	 *            the raw (base64) value
+	 * @param hash
+	 *            the content hash of the value (see
+	 *            {@link BlobStore#hash(String)}), or NULL if not computed
+	 */
+	Blob(String value, String hash) {
+		this.value = value;
+		this.hash = hash;
+	}
+
+	/**
+	 * Return the raw (base64) value.
+	 * 
+	 * @return the value
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Return the decoded value.
+	 * <p>
+	 * It is decoded on the first call, and kept as long as memory allows.
+	 * 
+	 * @return the bytes (do not modify them, they are shared)
+	 * 
+	 * @throws IOException
+	 *             if the value is not valid base64
+	 */
+	public byte[] getBytes() throws IOException {
+		SoftReference<byte[]> ref = bytes;
+		byte[] data = ref == null ? null : ref.get();
+		if (data == null) {
+			data = StringUtils.unbase64(getValue(), false);
+			bytes = new SoftReference<byte[]>(data);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Return the content hash of the value, which identifies it in the
+	 * {@link BlobStore}.
+	 * 
+	 * @return the hash
+	 */
+	public String getHash() {
+		if (hash == null)
+			hash = BlobStore.hash(getValue());
+
+		return hash;
+	}
+
+	/**
+	 * Feed the value to the given {@link StateDigest}.
+	 * 
+	 * @param digest
+	 *            the digest
+	 */
+	void updateState(StateDigest digest) {
+		digest.update(getValue());
+	}
+
+	@Override
+	public String toString() {
+		return "[Blob: " + getHash() + "]";
+	}
+}
@@ -0,0 +1,121 @@
+package be.nikiroo.jvcard;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nikiroo.jvcard.StateDigest.Algorithm;
+
+/**
+ * This class keeps the binary values of the {@link Data} (see {@link Blob}),
+ * indexed by their content hash, so the identical values (the same company
+ * logo on thousands of {@link Contact}s, the same photo in two {@link Card}s)
+ * are only kept once in memory.
+ * <p>
+ * The {@link Blob}s are only weakly referenced, and are forgotten when no
+ * {@link Data} uses them anymore.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author niki
+ */
+public class BlobStore {
+	/** Smaller values are not worth sharing (e.g., "&lt;HIDDEN_1&gt;") */
+	static private final int MIN_LENGTH = 64;
+
+	static private Map<String, BlobReference> blobs = new HashMap<String, BlobReference>();
+	static private ReferenceQueue<Blob> queue = new ReferenceQueue<Blob>();
+
+	/**
+	 * A weak reference to a {@link Blob} which knows its key.
+	 * 
+	 * @author niki
+	 */
+	static private class BlobReference extends WeakReference<Blob> {
+		private String hash;
+
+		public BlobReference(Blob blob, String hash) {
+			super(blob, queue);
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Return the shared {@link Blob} for the given raw binary value, creating
+	 * it if needed.
+	 * 
+	 * @param value
+	 *            the raw (base64) value, can be NULL
+	 * 
+	 * @return the {@link Blob}, or NULL if value was NULL
+	 */
+	static public Blob get(String value) {
+		if (value == null)
+			return null;
+
+		if (value.length() < MIN_LENGTH)
+			return new Blob(value, null);
+
+		String hash = hash(value);
+		synchronized (blobs) {
+			expunge();
+
+			BlobReference ref = blobs.get(hash);
+			Blob blob = ref == null ? null : ref.get();
+			// we check the value, the hash is not cryptographic
+			if (blob != null && blob.getValue().equals(value))
+				return blob;
+
+			blob = new Blob(value, hash);
+			if (ref == null || ref.get() == null)
+				blobs.put(hash, new BlobReference(blob, hash));
+
+			return blob;
+		}
+	}
+
+	/**
+	 * Return the number of {@link Blob}s currently shared.
+	 * 
+	 * @return the number of {@link Blob}s
+	 */
+	static public int size() {
+		synchronized (blobs) {
+			expunge();
+			return blobs.size();
+		}
+	}
+
+	/**
+	 * Compute the content hash of the given value.
+	 * 
+	 * @param value
+	 *            the value
+	 * 
+	 * @return the hash
+	 */
+	static String hash(String value) {
+		StateDigest digest = StateDigest.getInstance(Algorithm.FAST);
+		digest.update(value);
+
+		StringBuilder builder = new StringBuilder(StateDigest.SIZE * 2);
+		for (byte b : digest.digest()) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Forget the {@link Blob}s which are not used anymore.
+	 */
+	static private void expunge() {
+		for (Object ref = queue.poll(); ref != null; ref = queue.poll()) {
+			String hash = ((BlobReference) ref).hash;
+			if (blobs.get(hash) == ref)
+				blobs.remove(hash);
+		}
+	}
+}
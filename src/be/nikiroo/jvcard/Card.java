@@ -2,10 +2,18 @@ package be.nikiroo.jvcard;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.ref.WeakReference;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
 
 import be.nikiroo.jvcard.parsers.Format;
 import be.nikiroo.jvcard.parsers.Parser;
@@ -21,6 +29,10 @@ public class Card extends BaseClass<Contact> {
 	private String name;
 	private Format format;
 	private long lastModified;
+	/** The {@link Contact}s changed since the last time we were pristine */
+	private Set<Contact> changed = new LinkedHashSet<Contact>();
+	/** The snapshots still in use, see {@link Card#snapshot()} */
+	private List<WeakReference<CardSnapshot>> snapshots;
 
 	/**
 	 * Create a new {@link Card} from the given {@link File} and {@link Format}.
@@ -39,7 +51,67 @@ public class Card extends BaseClass<Contact> {
 	 */
 	public Card(File file, Format format) throws IOException {
 		this(Parser.parseContact(file, format));
+		link(file, format);
+	}
+
+	/**
+	 * Create a new {@link Card} from the given {@link Contact}s.
+	 * 
+	 * @param contacts
+	 *            the input contacts
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public Card(List<Contact> contacts) {
+		this(null, contacts, true);
+	}
+
+	/**
+	 * Create a new {@link Card} from the given {@link Contact}s, not linked to
+	 * any {@link File} (see {@link Card#unlink()}).
+	 * 
+	 * @param model
+	 *            the {@link Card} to take the name and {@link Format} from, or
+	 *            NULL
+	 * @param contacts
+	 *            the input contacts
+	 * @param copy
+	 *            TRUE to copy the {@link Contact}s from the {@link List},
+	 *            FALSE to keep them in this very {@link List} (see
+	 *            {@link BaseClass#BaseClass(List, boolean)})
+	 */
+	Card(Card model, List<Contact> contacts, boolean copy) {
+		super(contacts, copy);
+
+		if (model != null) {
+			name = model.name;
+			format = model.format;
+		}
+
+		lastModified = -1;
+	}
+
+	/**
+	 * Create a copy of this {@link Card} and its {@link Contact}s; the copy is
+	 * not linked to any {@link File} (see {@link Card#unlink()}).
+	 */
+	@Override
+	public Card copy() {
+		return new Card(this, copyChildren(), false);
+	}
 
+	/**
+	 * Link this {@link Card} to the {@link File} it was read from.
+	 * 
+	 * @param file
+	 *            the input {@link File} or NULL for none
+	 * @param format
+	 *            the {@link Format} it was read with
+	 */
+	void link(File file, Format format) {
 		if (file != null && file.exists()) {
 			lastModified = file.lastModified();
 		}
@@ -60,23 +132,6 @@ public class Card extends BaseClass<Contact> {
 		}
 	}
 
-	/**
-	 * Create a new {@link Card} from the given {@link Contact}s.
-	 * 
-	 * @param contacts
-	 *            the input contacts
-	 * 
-	 * @throws IOException
-	 *             in case of IO error
-	 * @throws InvalidParameterException
-	 *             if format is NULL
-	 */
-	public Card(List<Contact> contacts) {
-		super(contacts);
-
-		lastModified = -1;
-	}
-
 	/**
 	 * Save the {@link Card} to the given {@link File} with the given
 	 * {@link Format}.
@@ -95,11 +150,49 @@ public class Card extends BaseClass<Contact> {
 		if (file == null)
 			return false;
 
-		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		// some binary values may still be left in the file we replace (by
+		// this Card or another one), in that case we write to a temporary
+		// file first
+		File canonical = file.getCanonicalFile();
+		File target = file;
+		if (FileBlob.isUsed(canonical)) {
+			target = File.createTempFile(".jvcard", ".tmp",
+					canonical.getParentFile());
+		}
+
+		CountingWriter writer = new CountingWriter(new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(target), "UTF-8")));
+		boolean written = false;
 		try {
-			Parser.write(writer, format, this);
+			try {
+				Parser.write(writer, format, this);
+			} finally {
+				writer.close();
+			}
+
+			// the values we did not copy must be read before we replace it
+			if (target != file)
+				FileBlob.detach(canonical, writer.getCopies().keySet());
+
+			written = true;
 		} finally {
-			writer.close();
+			if (!written && target != file)
+				target.delete();
+		}
+
+		if (target != file) {
+			// some systems cannot rename onto an existing file
+			if (!target.renameTo(file)
+					&& (!file.delete() || !target.renameTo(file))) {
+				throw new IOException("Cannot replace " + file + " with "
+						+ target);
+			}
+
+			// the values we copied are now in the new file
+			for (Entry<FileBlob, Long> copy : writer.getCopies().entrySet()) {
+				if (copy.getKey().getFile().equals(canonical))
+					copy.getKey().relocate(file, copy.getValue());
+			}
 		}
 
 		if (this.file != null
@@ -142,6 +235,52 @@ public class Card extends BaseClass<Contact> {
 		return true;
 	}
 
+	/**
+	 * Return the {@link Contact}s of this {@link Card} which were changed
+	 * since the last time it was saved or reloaded (or since it was created).
+	 * <p>
+	 * The changes are recorded as they happen, so the {@link Card} does not
+	 * need to be checked.
+	 * 
+	 * @return the changed {@link Contact}s, in the order of their first change
+	 */
+	public List<Contact> getChangedContacts() {
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			List<Contact> contacts = new ArrayList<Contact>();
+			for (Contact contact : changed) {
+				// it may have been removed since
+				if (contact.parent == this && contact.isDirty())
+					contacts.add(contact);
+			}
+
+			return contacts;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return a read-only snapshot of this {@link Card} in its current state.
+	 * <p>
+	 * Taking a snapshot is cheap: the {@link Contact}s are only copied when
+	 * read through the snapshot or just before they are changed in this
+	 * {@link Card} (see {@link CardSnapshot}).
+	 * 
+	 * @return the snapshot
+	 */
+	public CardSnapshot snapshot() {
+		CardSnapshot snapshot = new CardSnapshot(this);
+		synchronized (this) {
+			if (snapshots == null)
+				snapshots = new CopyOnWriteArrayList<WeakReference<CardSnapshot>>();
+		}
+		snapshots.add(new WeakReference<CardSnapshot>(snapshot));
+
+		return snapshot;
+	}
+
 	/**
 	 * Return the name of this card (the name of the {@link File} which it was
 	 * opened from).
@@ -194,6 +333,73 @@ public class Card extends BaseClass<Contact> {
 		return "[Card: " + name + "]";
 	}
 
+	@Override
+	void childDirty(BaseClass<?> child) {
+		changed.add((Contact) child);
+		super.childDirty(child);
+	}
+
+	/**
+	 * Also let the snapshots keep their own copy of the list of
+	 * {@link Contact}s.
+	 */
+	@Override
+	void beforeChange() {
+		if (snapshots != null) {
+			for (WeakReference<CardSnapshot> ref : snapshots) {
+				CardSnapshot snapshot = ref.get();
+				if (snapshot != null) {
+					snapshot.preserveList();
+				} else {
+					snapshots.remove(ref);
+				}
+			}
+		}
+
+		super.beforeChange();
+	}
+
+	/**
+	 * Let the snapshots keep their own copy of the given {@link Contact}
+	 * before it changes; the list of {@link Contact}s does not change.
+	 */
+	@Override
+	void childBeforeChange(BaseClass<?> child) {
+		if (snapshots != null) {
+			for (WeakReference<CardSnapshot> ref : snapshots) {
+				CardSnapshot snapshot = ref.get();
+				if (snapshot != null) {
+					snapshot.preserve((Contact) child);
+				} else {
+					snapshots.remove(ref);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Let the snapshots keep their own copy of the given {@link Contact}, which
+	 * can now be changed without us knowing, and forget it (it is not one of
+	 * our changed {@link Contact}s anymore).
+	 */
+	@Override
+	void childLeft(BaseClass<?> child) {
+		childBeforeChange(child);
+		changed.remove(child);
+	}
+
+	@Override
+	void setPristine() {
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			changed.clear();
+			super.setPristine();
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
 	public String getId() {
 		return "" + name;
@@ -0,0 +1,193 @@
+package be.nikiroo.jvcard;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-only view of a {@link Card} as it was at a given time (see
+ * {@link Card#snapshot()}).
+ * <p>
+ * The snapshot shares the {@link Contact}s of the live {@link Card} and only
+ * makes its own copy of a {@link Contact} when it is read through the snapshot
+ * or when the live {@link Card} is about to change it or to remove it,
+ * whichever comes first (the list of {@link Contact}s is only copied when the
+ * live {@link Card} is about to change it). The {@link Contact}s returned by a
+ * snapshot are never the live ones, and must not be modified.
+ * <p>
+ * The snapshot can be read by other threads while the live {@link Card} is
+ * being changed, and its readers never hold a lock the writer of the
+ * {@link Card} would wait for (the copies are published through a concurrent
+ * map); it is a {@link List} and can be compared to a {@link Card} with
+ * {@link BaseClass#compare(List, List, List, List, List)}.
+ * 
+ * @author niki
+ */
+public class CardSnapshot extends AbstractList<Contact> {
+	private Card card;
+	private String name;
+	/** The {@link Contact}s of the {@link Card}, NULL while it did not change */
+	private volatile List<Contact> contacts;
+	/** The {@link Contact}s of the {@link Card} when they were copied */
+	private Set<Contact> members;
+	/** The copies of the live {@link Contact}s (which are compared by identity) */
+	private ConcurrentMap<Contact, Contact> copies;
+
+	/**
+	 * Create a new snapshot of the given {@link Card}.
+	 * 
+	 * @param card
+	 *            the live {@link Card}
+	 */
+	CardSnapshot(Card card) {
+		this.card = card;
+		this.name = card.getName();
+		this.copies = new ConcurrentHashMap<Contact, Contact>();
+	}
+
+	/**
+	 * Return the name of the {@link Card} (see {@link Card#getName()}).
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the (first) {@link Contact} with the given ID or NULL if not
+	 * found.
+	 * 
+	 * @param id
+	 *            the ID to look for
+	 * 
+	 * @return the {@link Contact} or NULL
+	 */
+	public Contact getById(String id) {
+		for (int i = 0; i < size(); i++) {
+			// the live Contacts are not read here, their caches are not
+			// thread-safe
+			Contact contact = get(i);
+			if (id.equals(contact.getId()))
+				return contact;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Return a new {@link Card} made of copies of the {@link Contact}s of this
+	 * snapshot (see {@link BaseClass#copy()}), which is not linked to any file.
+	 * 
+	 * @return the new {@link Card}
+	 */
+	public Card toCard() {
+		List<Contact> contacts = new ArrayList<Contact>(size());
+		for (Contact contact : this) {
+			contacts.add(contact.copy());
+		}
+
+		return new Card(contacts);
+	}
+
+	@Override
+	public Contact get(int index) {
+		Contact live = getLive(index);
+		Contact copy = copies.get(live);
+		if (copy == null) {
+			try {
+				copy = live.copy();
+			} catch (RuntimeException e) {
+				// it is being changed, so the writer copied it just before
+				copy = copies.get(live);
+				if (copy == null)
+					throw e;
+			}
+
+			// if the writer copied it first, ours may be partly changed
+			Contact first = copies.putIfAbsent(live, copy);
+			if (first != null)
+				copy = first;
+		}
+
+		return copy;
+	}
+
+	@Override
+	public int size() {
+		List<Contact> contacts = this.contacts;
+		if (contacts != null)
+			return contacts.size();
+
+		int size = card.size();
+
+		// the list may have been preserved then changed in the meantime
+		contacts = this.contacts;
+		if (contacts != null)
+			return contacts.size();
+
+		return size;
+	}
+
+	/**
+	 * Keep a copy of the list of {@link Contact}s of the live {@link Card}
+	 * which is about to change, if not already done (only called by the
+	 * writer of the {@link Card}).
+	 */
+	void preserveList() {
+		if (contacts == null) {
+			List<Contact> contacts = new ArrayList<Contact>(card);
+			members = Collections
+					.newSetFromMap(new IdentityHashMap<Contact, Boolean>());
+			members.addAll(contacts);
+
+			// only published when complete (concurrent readers)
+			this.contacts = contacts;
+		}
+	}
+
+	/**
+	 * Keep a copy of the given live {@link Contact} which is about to change
+	 * or which left the live {@link Card}, if it is part of this snapshot and
+	 * not already copied (only called by the writer of the {@link Card}).
+	 * 
+	 * @param live
+	 *            the live {@link Contact}
+	 */
+	void preserve(Contact live) {
+		if (members != null && !members.contains(live))
+			return;
+
+		if (!copies.containsKey(live))
+			copies.putIfAbsent(live, live.copy());
+	}
+
+	/**
+	 * Return the live {@link Contact} at the given position.
+	 * 
+	 * @param index
+	 *            the position
+	 * 
+	 * @return the live {@link Contact}, which must only be read if it was not
+	 *         copied yet
+	 */
+	private Contact getLive(int index) {
+		List<Contact> contacts = this.contacts;
+		if (contacts != null)
+			return contacts.get(index);
+
+		Contact live = card.get(index);
+
+		// the list may have been preserved then changed in the meantime
+		contacts = this.contacts;
+		if (contacts != null)
+			return contacts.get(index);
+
+		return live;
+	}
+}
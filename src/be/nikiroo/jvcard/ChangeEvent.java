@@ -0,0 +1,124 @@
+package be.nikiroo.jvcard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A change that happened to a {@link BaseClass} element, as sent to the
+ * {@link ChangeListener}s.
+ * 
+ * @author niki
+ */
+public class ChangeEvent {
+	/**
+	 * The kind of change.
+	 * 
+	 * @author niki
+	 */
+	public enum Type {
+		/** A child element was added to its parent */
+		ADD,
+		/** A child element was removed from its parent */
+		REMOVE,
+		/** A child element was replaced by another one in its parent */
+		REPLACE,
+		/** The value of an element changed (e.g., {@link Data#setValue}) */
+		VALUE,
+		/**
+		 * Many changes were made to the element and its descendants in a
+		 * batch (see {@link BaseClass#beginBatch()}); the element should be
+		 * considered as completely changed
+		 */
+		BATCH,
+	}
+
+	private Type type;
+	private List<BaseClass<?>> path;
+	private BaseClass<?> old;
+
+	/**
+	 * Create a new {@link ChangeEvent}.
+	 * 
+	 * @param type
+	 *            the kind of change
+	 * @param parent
+	 *            the element in which the change happened (for
+	 *            {@link Type#VALUE} and {@link Type#BATCH}, the parent of the
+	 *            changed element), or NULL if none
+	 * @param node
+	 *            the affected element (the new element for
+	 *            {@link Type#REPLACE})
+	 * @param old
+	 *            the replaced element for {@link Type#REPLACE}, NULL otherwise
+	 */
+	ChangeEvent(Type type, BaseClass<?> parent, BaseClass<?> node,
+			BaseClass<?> old) {
+		this.type = type;
+		this.old = old;
+
+		path = new ArrayList<BaseClass<?>>(4);
+		path.add(node);
+		for (BaseClass<?> p = parent; p != null; p = p.parent) {
+			path.add(p);
+		}
+		Collections.reverse(path);
+		path = Collections.unmodifiableList(path);
+	}
+
+	/**
+	 * Return the kind of change.
+	 * 
+	 * @return the type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Return the affected element: the added or removed child, the new child
+	 * for a replacement or the changed element (or batched element).
+	 * 
+	 * @return the affected element
+	 */
+	public BaseClass<?> getNode() {
+		return path.get(path.size() - 1);
+	}
+
+	/**
+	 * Return the element in which the change happened, that is, the parent of
+	 * the affected element (even if it was removed from it).
+	 * 
+	 * @return the parent, or NULL if none
+	 */
+	public BaseClass<?> getParent() {
+		if (path.size() > 1)
+			return path.get(path.size() - 2);
+		return null;
+	}
+
+	/**
+	 * Return the replaced element for a {@link Type#REPLACE}.
+	 * 
+	 * @return the replaced element or NULL
+	 */
+	public BaseClass<?> getOld() {
+		return old;
+	}
+
+	/**
+	 * Return the path to the affected element, from the root element (usually
+	 * a {@link Card}) to the affected element itself (e.g.: {@link Card},
+	 * {@link Contact}, {@link Data}).
+	 * 
+	 * @return the path (read-only)
+	 */
+	public List<BaseClass<?>> getPath() {
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + type + ": " + path + "]";
+	}
+}
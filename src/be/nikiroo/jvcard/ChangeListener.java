@@ -0,0 +1,17 @@
+package be.nikiroo.jvcard;
+
+/**
+ * A listener that will be notified of the changes to a {@link BaseClass}
+ * element and to all its descendants.
+ * 
+ * @author niki
+ */
+public interface ChangeListener {
+	/**
+	 * A change happened (the change is already applied).
+	 * 
+	 * @param event
+	 *            the change
+	 */
+	public void changed(ChangeEvent event);
+}
@@ -0,0 +1,595 @@
+package be.nikiroo.jvcard;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.InvalidParameterException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import be.nikiroo.jvcard.parsers.ContactReader;
+import be.nikiroo.jvcard.parsers.Format;
+
+/**
+ * A {@link Card} which keeps its {@link Contact}s in a compact form (see
+ * {@link ContactStore}) instead of as objects, for the very large
+ * {@link Card}s.
+ * <p>
+ * The {@link Contact} objects are created when they are accessed, and
+ * forgotten again when they are not used anymore (the changed ones are kept
+ * until the {@link Card} is saved). It can be used like any other
+ * {@link Card}, but going through all the {@link Contact}s (comparing,
+ * saving...) is slower.
+ * 
+ * @author niki
+ */
+public class CompactCard extends Card {
+	private CompactList contacts;
+
+	/**
+	 * Create a new {@link CompactCard} from the given {@link File} and
+	 * {@link Format}.
+	 * 
+	 * @param file
+	 *            the input {@link File} containing the {@link Card} data or
+	 *            NULL for an empty card (usually a {@link File} name or a
+	 *            network path)
+	 * @param format
+	 *            the {@link Format} to use to parse it
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public CompactCard(File file, Format format) throws IOException {
+		this(null, new CompactList());
+
+		// stored as they are read, the file is never fully in memory
+		if (file != null && file.exists()) {
+			ContactReader reader = new ContactReader(file, format);
+			try {
+				for (Contact contact = reader.read(); contact != null; contact = reader
+						.read()) {
+					contacts.load(contact);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		link(file, format);
+	}
+
+	/**
+	 * Create a new {@link CompactCard} from the given {@link Contact}s.
+	 * <p>
+	 * Note: the {@link Contact}s are stored, but the objects themselves are
+	 * not kept.
+	 * 
+	 * @param contacts
+	 *            the input contacts
+	 */
+	public CompactCard(List<Contact> contacts) {
+		this(null, new CompactList());
+
+		for (Contact contact : contacts) {
+			this.contacts.load(contact);
+		}
+	}
+
+	/**
+	 * Create a new, empty {@link CompactCard}.
+	 * 
+	 * @param model
+	 *            the {@link Card} to take the name and {@link Format} from, or
+	 *            NULL
+	 * @param contacts
+	 *            the (empty) {@link CompactList} to use
+	 */
+	private CompactCard(Card model, CompactList contacts) {
+		super(model, contacts, false);
+
+		this.contacts = contacts;
+		contacts.card = this;
+	}
+
+	@Override
+	public CompactCard copy() {
+		CompactCard copy = new CompactCard(this, new CompactList());
+
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			copy.contacts.loadAll(contacts);
+		} finally {
+			lock.unlock();
+		}
+
+		return copy;
+	}
+
+	@Override
+	public Contact getById(String id) {
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			List<Contact> found = contacts.getAllById(id, true);
+			if (found.isEmpty())
+				return null;
+
+			return found.get(0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<Contact> getAllById(String id) {
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			return Collections.unmodifiableList(contacts.getAllById(id,
+					false));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Also store the changed {@link Contact}s, since they will not be kept
+	 * anymore.
+	 */
+	@Override
+	void setPristine() {
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			contacts.storeAll(getChangedContacts());
+			super.setPristine();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void childIdChanged(BaseClass<?> child) {
+		contacts.idChanged();
+		super.childIdChanged(child);
+	}
+
+	@Override
+	boolean cacheSorted() {
+		return false;
+	}
+
+	/**
+	 * A weak reference to a {@link Contact} in use, which knows its record.
+	 * 
+	 * @author niki
+	 */
+	static private class Handle extends WeakReference<Contact> {
+		private int record;
+
+		public Handle(Contact contact, int record,
+				ReferenceQueue<Contact> queue) {
+			super(contact, queue);
+			this.record = record;
+		}
+	}
+
+	/**
+	 * The {@link List} of {@link Contact}s of a {@link CompactCard}: the
+	 * records of the {@link Contact}s in a {@link ContactStore}, in order.
+	 * <p>
+	 * A changed {@link Contact} is stored again (as a new record) when its
+	 * {@link Card} is saved; until then, its parent keeps it.
+	 * 
+	 * @author niki
+	 */
+	static private class CompactList extends AbstractList<Contact> implements
+			RandomAccess {
+		private CompactCard card;
+		private ContactStore store = new ContactStore();
+		private int[] records = new int[16];
+		private int size;
+		/** The records in the list */
+		private BitSet present = new BitSet();
+		/** The {@link Contact}s in use, by record */
+		private Map<Integer, Handle> handles = new HashMap<Integer, Handle>();
+		private ReferenceQueue<Contact> queue = new ReferenceQueue<Contact>();
+		/** The ID index, built when needed: the records (+1) by ID hash */
+		private int[] ids;
+		private int[] idHashes;
+		private int idCount;
+
+		/**
+		 * Store the given {@link Contact} at the end of the list, without
+		 * keeping the object itself (initial load).
+		 * 
+		 * @param contact
+		 *            the {@link Contact} to store
+		 */
+		public synchronized void load(Contact contact) {
+			append(store.add(contact));
+		}
+
+		/**
+		 * Store all the {@link Contact}s of the given {@link CompactList} at
+		 * the end of the list, without keeping the objects (initial load).
+		 * 
+		 * @param other
+		 *            the {@link CompactList} to copy
+		 */
+		public synchronized void loadAll(CompactList other) {
+			synchronized (other) {
+				for (int i = 0; i < other.size; i++) {
+					int record = other.records[i];
+					Contact contact = other.live(record);
+					if (contact == null)
+						contact = other.store.get(record);
+
+					append(store.add(contact));
+				}
+			}
+		}
+
+		/**
+		 * Store the given {@link Contact}s again, as they are now.
+		 * 
+		 * @param contacts
+		 *            the {@link Contact}s to store
+		 */
+		public synchronized void storeAll(Collection<Contact> contacts) {
+			if (contacts.isEmpty())
+				return;
+
+			Set<Contact> changed = new HashSet<Contact>(contacts);
+			for (int i = 0; i < size; i++) {
+				Contact contact = live(records[i]);
+				if (contact != null && changed.contains(contact)) {
+					present.clear(records[i]);
+					records[i] = store(contact);
+				}
+			}
+		}
+
+		/**
+		 * Return the {@link Contact}s with the given ID, in order.
+		 * 
+		 * @param id
+		 *            the ID to look for
+		 * @param first
+		 *            only the first one is needed
+		 * 
+		 * @return the {@link Contact}s (a new {@link List})
+		 */
+		public synchronized List<Contact> getAllById(String id, boolean first) {
+			if (id == null)
+				return new ArrayList<Contact>();
+
+			if (ids == null)
+				buildIds();
+
+			int hash = id.hashCode();
+			List<Integer> found = new ArrayList<Integer>(1);
+			int mask = ids.length - 1;
+			for (int slot = slot(hash, mask); ids[slot] != 0; slot = (slot + 1)
+					& mask) {
+				int record = ids[slot] - 1;
+				if (idHashes[slot] == hash && present.get(record)
+						&& id.equals(getId(record))) {
+					found.add(record);
+				}
+			}
+
+			List<Contact> contacts = new ArrayList<Contact>(found.size());
+			if (found.size() == 1) {
+				contacts.add(contact(found.get(0)));
+			} else if (!found.isEmpty()) {
+				// the index does not know their order in the list
+				for (int i = 0; i < size; i++) {
+					if (found.contains(records[i])) {
+						contacts.add(contact(records[i]));
+						if (first)
+							break;
+					}
+				}
+			}
+
+			return contacts;
+		}
+
+		/**
+		 * The ID of a {@link Contact} in use changed.
+		 */
+		public synchronized void idChanged() {
+			ids = null;
+		}
+
+		@Override
+		public synchronized Contact get(int index) {
+			checkIndex(index, size - 1);
+			return contact(records[index]);
+		}
+
+		@Override
+		public synchronized int size() {
+			return size;
+		}
+
+		@Override
+		public synchronized Contact set(int index, Contact element) {
+			checkIndex(index, size - 1);
+
+			Contact old = contact(records[index]);
+			present.clear(records[index]);
+			records[index] = store(element);
+
+			return old;
+		}
+
+		@Override
+		public synchronized void add(int index, Contact element) {
+			checkIndex(index, size);
+
+			int record = store(element);
+			ensureCapacity();
+			System.arraycopy(records, index, records, index + 1, size - index);
+			records[index] = record;
+			size++;
+			modCount++;
+		}
+
+		@Override
+		public synchronized Contact remove(int index) {
+			checkIndex(index, size - 1);
+
+			Contact old = contact(records[index]);
+			present.clear(records[index]);
+			System.arraycopy(records, index + 1, records, index, size - index
+					- 1);
+			size--;
+			modCount++;
+
+			return old;
+		}
+
+		@Override
+		public synchronized void clear() {
+			present.clear();
+			size = 0;
+			ids = null;
+			modCount++;
+		}
+
+		@Override
+		public synchronized int indexOf(Object o) {
+			if (!(o instanceof Contact) || ((Contact) o).parent != card)
+				return -1;
+
+			for (int i = 0; i < size; i++) {
+				if (live(records[i]) == o)
+					return i;
+			}
+
+			return -1;
+		}
+
+		@Override
+		public synchronized int lastIndexOf(Object o) {
+			if (!(o instanceof Contact) || ((Contact) o).parent != card)
+				return -1;
+
+			for (int i = size - 1; i >= 0; i--) {
+				if (live(records[i]) == o)
+					return i;
+			}
+
+			return -1;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return indexOf(o) >= 0;
+		}
+
+		/**
+		 * Return the {@link Contact} of the given record, creating it if it is
+		 * not in use.
+		 * 
+		 * @param record
+		 *            the record
+		 * 
+		 * @return the {@link Contact}
+		 */
+		private Contact contact(int record) {
+			Contact contact = live(record);
+			if (contact == null) {
+				contact = store.get(record);
+				contact.setParent(card);
+				handles.put(record, new Handle(contact, record, queue));
+			}
+
+			return contact;
+		}
+
+		/**
+		 * Return the {@link Contact} of the given record if it is in use.
+		 * 
+		 * @param record
+		 *            the record
+		 * 
+		 * @return the {@link Contact} or NULL
+		 */
+		private Contact live(int record) {
+			expunge();
+
+			Handle handle = handles.get(record);
+			if (handle != null)
+				return handle.get();
+
+			return null;
+		}
+
+		/**
+		 * Store the given {@link Contact}, which is in use.
+		 * 
+		 * @param contact
+		 *            the {@link Contact}
+		 * 
+		 * @return its new record
+		 */
+		private int store(Contact contact) {
+			int record = store.add(contact);
+			present.set(record);
+			handles.put(record, new Handle(contact, record, queue));
+			indexId(record, contact.getId());
+
+			return record;
+		}
+
+		/**
+		 * Add the given record at the end of the list.
+		 * 
+		 * @param record
+		 *            the record
+		 */
+		private void append(int record) {
+			ensureCapacity();
+			records[size++] = record;
+			present.set(record);
+			ids = null;
+			modCount++;
+		}
+
+		/**
+		 * Return the ID of the given record, without creating its
+		 * {@link Contact} if not in use.
+		 * 
+		 * @param record
+		 *            the record
+		 * 
+		 * @return the ID
+		 */
+		private String getId(int record) {
+			Contact contact = live(record);
+			if (contact != null)
+				return contact.getId();
+
+			String raw = store.getRawId(record);
+			return "" + (raw == null ? null : card.unescape(raw));
+		}
+
+		/**
+		 * Build the ID index of the records in the list.
+		 */
+		private void buildIds() {
+			int capacity = 16;
+			while (capacity < size * 2)
+				capacity *= 2;
+
+			ids = new int[capacity];
+			idHashes = new int[capacity];
+			idCount = 0;
+			for (int i = 0; i < size; i++) {
+				indexId(records[i], getId(records[i]));
+			}
+		}
+
+		/**
+		 * Add the given record to the ID index if it is built.
+		 * 
+		 * @param record
+		 *            the record
+		 * @param id
+		 *            its ID
+		 */
+		private void indexId(int record, String id) {
+			if (ids == null)
+				return;
+
+			if ((idCount + 1) * 2 > ids.length) {
+				// will be rebuilt (without the removed records) when needed
+				ids = null;
+				return;
+			}
+
+			int hash = id.hashCode();
+			int mask = ids.length - 1;
+			int slot = slot(hash, mask);
+			while (ids[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+
+			ids[slot] = record + 1;
+			idHashes[slot] = hash;
+			idCount++;
+		}
+
+		/**
+		 * Forget the {@link Contact}s which are not in use anymore.
+		 */
+		private void expunge() {
+			for (Object ref = queue.poll(); ref != null; ref = queue.poll()) {
+				Handle handle = (Handle) ref;
+				if (handles.get(handle.record) == handle)
+					handles.remove(handle.record);
+			}
+		}
+
+		/**
+		 * Make sure there is room for one more record.
+		 */
+		private void ensureCapacity() {
+			if (size == records.length) {
+				int[] newRecords = new int[records.length * 2];
+				System.arraycopy(records, 0, newRecords, 0, size);
+				records = newRecords;
+			}
+		}
+
+		/**
+		 * Check the given index.
+		 * 
+		 * @param index
+		 *            the index
+		 * @param max
+		 *            the maximum allowed value
+		 * 
+		 * @throws IndexOutOfBoundsException
+		 *             if it is out of bounds
+		 */
+		private void checkIndex(int index, int max) {
+			if (index < 0 || index > max) {
+				throw new IndexOutOfBoundsException("Index: " + index
+						+ ", Size: " + size);
+			}
+		}
+
+		/**
+		 * Return the first slot to try for the given hash in the ID index.
+		 * 
+		 * @param hash
+		 *            the hash of the ID
+		 * @param mask
+		 *            the size of the index - 1
+		 * 
+		 * @return the slot
+		 */
+		static private int slot(int hash, int mask) {
+			return ((hash ^ (hash >>> 16)) * 0x9E3779B9) & mask;
+		}
+	}
+}
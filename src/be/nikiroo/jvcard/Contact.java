@@ -8,10 +8,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
+import be.nikiroo.jvcard.Data.DataPart;
 import be.nikiroo.jvcard.parsers.Format;
 import be.nikiroo.jvcard.parsers.Parser;
-import be.nikiroo.utils.StringUtils;
 
 /**
  * A contact is the information that represent a contact person or organisation.
@@ -26,6 +28,43 @@ import be.nikiroo.utils.StringUtils;
 public class Contact extends BaseClass<Data> {
 	private int nextBKey = 1;
 	private Map<Integer, Data> binaries;
+	/** The last known ID, to detect UID changes */
+	private String lastId;
+	/** The preferred {@link Data} per name, until the next change */
+	private volatile Map<String, Data> preferred;
+	/** The last renderings of this {@link Contact}, until the next change */
+	private volatile Rendering[] renderings;
+
+	/**
+	 * A rendering of a {@link Contact}, see
+	 * {@link Contact#toStringArray(ContactFormat, String, String, int, boolean)}
+	 * .
+	 * 
+	 * @author niki
+	 */
+	static private class Rendering {
+		private ContactFormat format;
+		private String separator;
+		private String padding;
+		private int width;
+		private boolean unicode;
+		private String[] parts;
+
+		public boolean isFor(ContactFormat format, String separator,
+				String padding, int width, boolean unicode) {
+			return this.format == format && this.width == width
+					&& this.unicode == unicode
+					&& equals(this.separator, separator)
+					&& equals(this.padding, padding);
+		}
+
+		static private boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/** The number of renderings kept per {@link Contact} */
+	static private final int RENDERINGS = 2;
 
 	/**
 	 * Create a new Contact from the given information. Note that the BKeys data
@@ -37,11 +76,52 @@ public class Contact extends BaseClass<Data> {
 	public Contact(List<Data> content) {
 		super(load(content));
 		updateBKeys(true);
+		lastId = getId();
+	}
+
+	/**
+	 * Create a copy of the given {@link Contact} and its {@link Data}; the
+	 * BKeys are kept.
+	 * 
+	 * @param other
+	 *            the {@link Contact} to copy
+	 */
+	private Contact(Contact other) {
+		this(other.copyChildren(), other.nextBKey);
+	}
+
+	/**
+	 * Create a new {@link Contact} from the given complete information (see
+	 * {@link ContactStore}); the BKeys are kept.
+	 * 
+	 * @param content
+	 *            the information about the contact
+	 * @param nextBKey
+	 *            the next BKey to use
+	 */
+	Contact(List<Data> content, int nextBKey) {
+		super(content);
+
+		this.nextBKey = nextBKey;
+		binaries = new HashMap<Integer, Data>();
+		for (Data data : this) {
+			if (data.getB64Key() > 0)
+				binaries.put(data.getB64Key(), data);
+		}
+
+		lastId = getId();
+	}
+
+	@Override
+	public Contact copy() {
+		return new Contact(this);
 	}
 
 	/**
 	 * Return the preferred Data field with the given name, the first one if
 	 * none is preferred, or NULL if none at all.
+	 * <p>
+	 * The result is cached until this {@link Contact} changes.
 	 * 
 	 * @param name
 	 *            the name to look for
@@ -49,17 +129,44 @@ public class Contact extends BaseClass<Data> {
 	 * @return the {@link Data} field, or NULL
 	 */
 	public Data getPreferredData(String name) {
-		Data pref = null;
-		int ipref = Integer.MAX_VALUE;
-		for (Data data : getData(name)) {
-			if (pref == null)
-				pref = data;
-
-			if (data.getPreferred() < ipref)
-				pref = data;
+		Map<String, Data> preferred = this.preferred;
+		if (preferred != null) {
+			Data pref = preferred.get(name);
+			if (pref != null)
+				return pref;
 		}
 
-		return pref;
+		// under the read lock, so a change cannot be missed
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			preferred = this.preferred;
+			if (preferred == null) {
+				// can be filled by concurrent readers
+				preferred = new ConcurrentHashMap<String, Data>();
+				this.preferred = preferred;
+			}
+
+			Data pref = null;
+			int ipref = Integer.MAX_VALUE;
+			for (Data data : getData(name)) {
+				if (pref == null)
+					pref = data;
+
+				if (data.getPreferred() < ipref) {
+					pref = data;
+					ipref = data.getPreferred();
+				}
+			}
+
+			// NULL cannot be cached, but unknown names are quickly found anyway
+			if (pref != null)
+				preferred.put(name, pref);
+
+			return pref;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -78,22 +185,50 @@ public class Contact extends BaseClass<Data> {
 		return null;
 	}
 
+	/**
+	 * Return the given part of the preferred structured {@link Data} (see
+	 * {@link Data#getPart(DataPart)}), or NULL if none.
+	 * 
+	 * @param part
+	 *            the part to look for
+	 * 
+	 * @return the part, or NULL
+	 */
+	public String getPreferredDataPart(DataPart part) {
+		Data data = getPreferredData(part.getName());
+		if (data != null)
+			return data.getPart(part);
+
+		return null;
+	}
+
 	/**
 	 * Get the Data fields that share the given name.
+	 * <p>
+	 * The {@link Data} are indexed by name, so this is a read-only view on the
+	 * index which is only valid until this {@link Contact} is modified (see
+	 * {@link BaseClass#getAllById(String)}).
 	 * 
 	 * @param name
 	 *            the name to look for
 	 * @return a list of Data fields with this name
 	 */
 	public List<Data> getData(String name) {
-		List<Data> found = new LinkedList<Data>();
-
-		for (Data data : this) {
-			if (data.getName().equals(name))
-				found.add(data);
-		}
+		// Data ID == Data name
+		return getAllById(name);
+	}
 
-		return found;
+	/**
+	 * Check if this {@link Contact} has at least one {@link Data} with the
+	 * given name.
+	 * 
+	 * @param name
+	 *            the name to look for
+	 * 
+	 * @return TRUE if it does
+	 */
+	public boolean hasData(String name) {
+		return getById(name) != null;
 	}
 
 	/**
@@ -139,6 +274,26 @@ public class Contact extends BaseClass<Data> {
 		return toString(format, separator, null, -1, true);
 	}
 
+	/**
+	 * Return a {@link String} representation of this contact formated
+	 * accordingly to the given compiled format.
+	 * 
+	 * @param format
+	 *            the format to use
+	 * @param separator
+	 *            the separator {@link String} to use between fields
+	 * 
+	 * @return the {@link String} representation
+	 */
+	public String toString(ContactFormat format, String separator) {
+		StringBuilder builder = new StringBuilder();
+		for (String str : toStringArray(format, separator, null, -1, true)) {
+			builder.append(str);
+		}
+
+		return builder.toString();
+	}
+
 	/**
 	 * Return a {@link String} representation of this contact formated
 	 * accordingly to the given format.
@@ -242,34 +397,74 @@ public class Contact extends BaseClass<Data> {
 	 */
 	public String[] toStringArray(String format, String separator,
 			String padding, int width, boolean unicode) {
-		if (width > -1) {
-			int numOfFields = format.split("\\|").length;
-			if (separator != null)
-				width -= (numOfFields - 1) * separator.length();
-			if (padding != null)
-				width -= (numOfFields) * (2 * padding.length());
-
-			if (width < 0)
-				width = 0;
-		}
-
-		List<String> str = new LinkedList<String>();
+		return toStringArray(ContactFormat.compile(format), separator,
+				padding, width, unicode);
+	}
 
-		boolean first = true;
-		for (String s : toStringArray(format, width, unicode)) {
-			if (!first) {
-				str.add(separator);
+	/**
+	 * Return a {@link String} representation of this contact formated
+	 * accordingly to the given compiled format, part by part (the fields are
+	 * separated by <tt>separator</tt> and padded with <tt>padding</tt>).
+	 * <p>
+	 * The last renderings are cached until this {@link Contact} changes, so
+	 * rendering it again with the same parameters is cheap.
+	 * 
+	 * @param format
+	 *            the format to use
+	 * @param separator
+	 *            the separator {@link String} to use between fields
+	 * @param padding
+	 *            the {@link String} to use for left and right padding
+	 * @param width
+	 *            a fixed width or -1 for "as long as needed"
+	 * 
+	 * @param unicode
+	 *            allow Uniode or only ASCII characters
+	 * 
+	 * @return the {@link String} representation
+	 */
+	public String[] toStringArray(ContactFormat format, String separator,
+			String padding, int width, boolean unicode) {
+		Rendering[] renderings = this.renderings;
+		if (renderings != null) {
+			for (Rendering rendering : renderings) {
+				if (rendering != null
+						&& rendering.isFor(format, separator, padding, width,
+								unicode))
+					return rendering.parts.clone();
 			}
+		}
 
-			if (padding != null)
-				str.add(padding + s + padding);
+		Rendering rendering = new Rendering();
+		rendering.format = format;
+		rendering.separator = separator;
+		rendering.padding = padding;
+		rendering.width = width;
+		rendering.unicode = unicode;
+
+		// under the read lock, so a change cannot be missed
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			renderings = this.renderings;
+			if (renderings == null)
+				renderings = new Rendering[RENDERINGS];
 			else
-				str.add(s);
-
-			first = false;
+				renderings = renderings.clone();
+
+			rendering.parts = format.format(this, separator, padding, width,
+					unicode);
+
+			// keep the most recent first
+			System.arraycopy(renderings, 0, renderings, 1,
+					renderings.length - 1);
+			renderings[0] = rendering;
+			this.renderings = renderings;
+		} finally {
+			lock.unlock();
 		}
 
-		return str.toArray(new String[] {});
+		return rendering.parts.clone();
 	}
 
 	/**
@@ -313,163 +508,25 @@ public class Contact extends BaseClass<Data> {
 	 * @return the {@link String} representation
 	 */
 	public String[] toStringArray(String format, int width, boolean unicode) {
-		List<String> str = new LinkedList<String>();
-
-		String[] formatFields = format.split("\\|");
-		String[] values = new String[formatFields.length];
-		Boolean[] expandedFields = new Boolean[formatFields.length];
-		Boolean[] fixedsizeFields = new Boolean[formatFields.length];
-		int numOfFieldsToExpand = 0;
-		int totalSize = 0;
-
-		if (width == 0) {
-			for (int i = 0; i < formatFields.length; i++) {
-				str.add("");
-			}
-
-			return str.toArray(new String[] {});
-		}
-
-		for (int i = 0; i < formatFields.length; i++) {
-			String field = formatFields[i];
-
-			int size = -1;
-			boolean binary = false;
-			boolean expand = false;
-			int fieldNum = -1;
-			int valueNum = -1;
-
-			if (field.length() > 0 && field.charAt(0) != '\''
-					&& field.contains("@")) {
-				String[] opts = field.split("@");
-				if (opts.length > 0)
-					field = opts[0];
-				for (int io = 1; io < opts.length; io++) {
-					String opt = opts[io];
-					if (opt.equals("x")) {
-						binary = true;
-					} else if (opt.equals("+")) {
-						expand = true;
-						numOfFieldsToExpand++;
-					} else if (opt.length() > 0 && opt.charAt(0) == '(') {
-						try {
-							opt = opt.substring(1, opt.length() - 1);
-							valueNum = Integer.parseInt(opt);
-						} catch (Exception e) {
-						}
-					} else if (opt.length() > 0 && opt.charAt(0) == '[') {
-						try {
-							opt = opt.substring(1, opt.length() - 1);
-							fieldNum = Integer.parseInt(opt);
-						} catch (Exception e) {
-						}
-					} else {
-						try {
-							size = Integer.parseInt(opt);
-						} catch (NumberFormatException e) {
-						}
-					}
-				}
-			}
-
-			String value = null;
-			if (field.length() > 0 && field.charAt(0) == '\'') {
-				value = field.substring(1);
-			} else if (valueNum >= 0) {
-				List<String> vv = getPreferredData(field).getValues();
-				if (valueNum < vv.size()) {
-					value = vv.get(valueNum);
-				}
-			} else if (fieldNum >= 0) {
-				List<String> ff = getPreferredData(field).getFields();
-				if (fieldNum < ff.size()) {
-					value = ff.get(fieldNum);
-				}
-			} else {
-				// we don't need the *data* in binary mode...
-				if (binary)
-					value = getData(field).size() > 0 ? "x" : null;
-				else
-					value = getPreferredDataValue(field);
-			}
-
-			if (value == null) {
-				value = "";
-			} else {
-				value = StringUtils.sanitize(value, unicode);
-			}
-
-			if (size > -1) {
-				value = StringUtils.padString(value, size);
-			}
-
-			expandedFields[i] = expand;
-			fixedsizeFields[i] = (size > -1);
-
-			if (binary) {
-				if (value != null && !value.equals(""))
-					values[i] = "x";
-				else
-					values[i] = " ";
-				totalSize++;
-			} else {
-				values[i] = value;
-				totalSize += value.length();
-			}
-		}
-
-		if (width > -1 && totalSize > width) {
-			int toDo = totalSize - width;
-			for (int i = fixedsizeFields.length - 1; toDo > 0 && i >= 0; i--) {
-				if (!fixedsizeFields[i]) {
-					int valueLength = values[i].length();
-					if (valueLength > 0) {
-						if (valueLength >= toDo) {
-							values[i] = values[i].substring(0, valueLength
-									- toDo);
-							toDo = 0;
-						} else {
-							values[i] = "";
-							toDo -= valueLength;
-						}
-					}
-				}
-			}
-
-			totalSize = width + toDo;
-		}
-
-		if (width > -1 && numOfFieldsToExpand > 0) {
-			int availablePadding = width - totalSize;
-
-			if (availablePadding > 0) {
-				int padPerItem = availablePadding / numOfFieldsToExpand;
-				int remainder = availablePadding % numOfFieldsToExpand;
-
-				for (int i = 0; i < values.length; i++) {
-					if (expandedFields[i]) {
-						if (remainder > 0) {
-							values[i] = values[i]
-									+ StringUtils.padString("", remainder);
-							remainder = 0;
-						}
-						if (padPerItem > 0) {
-							values[i] = values[i]
-									+ StringUtils.padString("", padPerItem);
-						}
-					}
-				}
-
-				totalSize = width;
-			}
-		}
-
-		int currentSize = 0;
-		for (int i = 0; i < values.length; i++) {
-			currentSize += addToList(str, values[i], currentSize, width);
-		}
+		return toStringArray(ContactFormat.compile(format), width, unicode);
+	}
 
-		return str.toArray(new String[] {});
+	/**
+	 * Return a {@link String} representation of this contact formated
+	 * accordingly to the given compiled format, part by part.
+	 * 
+	 * @param format
+	 *            the format to use
+	 * @param width
+	 *            a fixed width or -1 for "as long as needed"
+	 * @param unicode
+	 *            allow Uniode or only ASCII characters
+	 * 
+	 * @return the {@link String} representation, one item per field
+	 */
+	public String[] toStringArray(ContactFormat format, int width,
+			boolean unicode) {
+		return format.format(this, width, unicode);
 	}
 
 	/**
@@ -482,21 +539,28 @@ public class Contact extends BaseClass<Data> {
 	 *            the contact with the newer information and optional BKeys
 	 */
 	public void updateFrom(Contact vc) {
-		updateBKeys(false);
-
-		List<Data> newDatas = new LinkedList<Data>(vc);
-		for (int i = 0; i < newDatas.size(); i++) {
-			Data data = newDatas.get(i);
-			int bkey = Parser.getBKey(data);
-			if (bkey >= 0) {
-				if (binaries.containsKey(bkey)) {
-					newDatas.set(i, binaries.get(bkey));
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			beforeChange();
+			updateBKeys(false);
+
+			List<Data> newDatas = new LinkedList<Data>(vc);
+			for (int i = 0; i < newDatas.size(); i++) {
+				Data data = newDatas.get(i);
+				int bkey = Parser.getBKey(data);
+				if (bkey >= 0) {
+					if (binaries.containsKey(bkey)) {
+						newDatas.set(i, binaries.get(bkey));
+					}
 				}
 			}
-		}
 
-		replaceListContent(newDatas);
-		this.nextBKey = vc.nextBKey;
+			replaceListContent(newDatas);
+			this.nextBKey = vc.nextBKey;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
@@ -520,6 +584,39 @@ public class Contact extends BaseClass<Data> {
 		return "[Contact: " + getPreferredDataValue("FN") + "]";
 	}
 
+	/**
+	 * Also forget the cached preferred {@link Data} and renderings, and check
+	 * if the UID of this {@link Contact} changed, in which case its parent
+	 * will be notified (see {@link BaseClass#idChanged()}).
+	 * <p>
+	 * During a batch, the UID is only checked once, when it ends (reading it
+	 * would rebuild the name index after each change).
+	 */
+	@Override
+	void setDirty() {
+		preferred = null;
+		renderings = null;
+
+		if (!isInBatch()) {
+			String id = getId();
+			if (!id.equals(lastId)) {
+				lastId = id;
+				idChanged();
+			}
+		}
+
+		super.setDirty();
+	}
+
+	/**
+	 * Return the next BKey number to use.
+	 * 
+	 * @return the next BKey
+	 */
+	int getNextBKey() {
+		return nextBKey;
+	}
+
 	/**
 	 * Mark all the binary fields with a BKey number.
 	 * 
@@ -527,20 +624,28 @@ public class Contact extends BaseClass<Data> {
 	 *            force the marking, and reset all the numbers.
 	 */
 	protected void updateBKeys(boolean force) {
-		if (force) {
-			binaries = new HashMap<Integer, Data>();
-			nextBKey = 1;
-		}
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			beforeChange();
+
+			if (force) {
+				binaries = new HashMap<Integer, Data>();
+				nextBKey = 1;
+			}
 
-		if (binaries == null) {
-			binaries = new HashMap<Integer, Data>();
-		}
+			if (binaries == null) {
+				binaries = new HashMap<Integer, Data>();
+			}
 
-		for (Data data : this) {
-			if (data.isBinary() && (data.getB64Key() <= 0 || force)) {
-				binaries.put(nextBKey, data);
-				data.resetB64Key(nextBKey++);
+			for (Data data : this) {
+				if (data.isBinary() && (data.getB64Key() <= 0 || force)) {
+					binaries.put(nextBKey, data);
+					data.resetB64Key(nextBKey++);
+				}
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -588,50 +693,4 @@ public class Contact extends BaseClass<Data> {
 
 		return datas;
 	}
-
-	/**
-	 * Add a {@link String} to the given {@link List}, but make sure it does not
-	 * exceed the maximum size, and truncate it if needed to fit.
-	 * <p>
-	 * Will always add one and only one {@link String} (potentially empty) at
-	 * the end of <tt>list</tt>.
-	 * 
-	 * @param list
-	 *            the list to add to
-	 * @param add
-	 *            the {@link String} to (either fully or partially) add
-	 * @param currentSize
-	 *            the current total size (managed outside of this method)
-	 * @param maxSize
-	 *            the maximum size that cannot be exceeded (or -1 for
-	 *            "no maximum") -- if the maximum size would be exceeded by
-	 *            adding this {@link String}, only a part of it will be added;
-	 *            if the maximum size is already reached or exceeded (should not
-	 *            happen because of this method), an empty {@link String} will
-	 *            be added
-	 * 
-	 * @return the number of characters added (the size of the last
-	 *         {@link String} in <tt>list</tt>)
-	 */
-	static private int addToList(List<String> list, String add,
-			int currentSize, int maxSize) {
-		if (add == null || add.length() == 0) {
-			if (add != null)
-				list.add(add);
-			return 0;
-		}
-
-		if (maxSize > -1) {
-			if (currentSize < maxSize) {
-				if (currentSize + add.length() >= maxSize) {
-					add = add.substring(0, maxSize - currentSize);
-				}
-			} else {
-				add = "";
-			}
-		}
-
-		list.add(add);
-		return add.length();
-	}
 }
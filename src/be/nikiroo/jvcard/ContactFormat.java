@@ -0,0 +1,408 @@
+package be.nikiroo.jvcard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nikiroo.utils.StringUtils;
+
+/**
+ * A compiled contact format, as used by
+ * {@link Contact#toStringArray(ContactFormat, int, boolean)}.
+ * <p>
+ * The format is basically a list of field names separated by a pipe and
+ * optionally parametrised with the 'at' (@) symbol. The parameters allows you
+ * to:
+ * <ul>
+ * <li>@x: show only a present/not present info</li>
+ * <li>@n: limit the size to a fixed value 'n'</li>
+ * <li>@+: expand the size of this field as much as possible</li>
+ * </ul>
+ * In case of lists or multiple-fields values, you can select a specific list
+ * or field with:
+ * <ul>
+ * <li>FIELD@(0): select the first value in a list</li>
+ * <li>FIELD@[1]: select the second field in a multiple-fields value</li>
+ * </ul>
+ * You can also add a fixed text if it starts with a simple-quote (').
+ * <p>
+ * Example: "'Contact: |N@10|FN@20|NICK@+|PHOTO@x"
+ * <p>
+ * The format is parsed only once, when compiled; a {@link ContactFormat} is
+ * immutable and can be shared.
+ * 
+ * @author niki
+ */
+public class ContactFormat {
+	/** Do not keep more compiled formats than that in the cache */
+	static private final int MAX_CACHED = 100;
+	static private Map<String, ContactFormat> cache = new ConcurrentHashMap<String, ContactFormat>();
+
+	private String format;
+	private List<String> fields;
+	private Slot[] slots;
+	private int numOfFieldsToExpand;
+
+	/**
+	 * A field of the format, with its options.
+	 * 
+	 * @author niki
+	 */
+	static private class Slot {
+		/** The field name, or NULL for a fixed text */
+		private String name;
+		/** The fixed text, if any */
+		private String text;
+		private int size = -1;
+		private boolean binary;
+		private boolean expand;
+		private int fieldNum = -1;
+		private int valueNum = -1;
+	}
+
+	/**
+	 * Compile the given format.
+	 * 
+	 * @param format
+	 *            the format (<b>MUST NOT</b> be NULL)
+	 */
+	private ContactFormat(String format) {
+		this.format = format;
+
+		String[] formatFields = format.split("\\|");
+		fields = Collections.unmodifiableList(Arrays.asList(formatFields));
+		slots = new Slot[formatFields.length];
+
+		for (int i = 0; i < formatFields.length; i++) {
+			String field = formatFields[i];
+			Slot slot = new Slot();
+
+			if (field.length() > 0 && field.charAt(0) == '\'') {
+				slot.text = field.substring(1);
+			} else {
+				if (field.contains("@")) {
+					String[] opts = field.split("@");
+					if (opts.length > 0)
+						field = opts[0];
+					for (int io = 1; io < opts.length; io++) {
+						parseOption(slot, opts[io]);
+					}
+				}
+
+				slot.name = field;
+			}
+
+			if (slot.expand)
+				numOfFieldsToExpand++;
+
+			slots[i] = slot;
+		}
+	}
+
+	/**
+	 * Return the compiled version of the given format.
+	 * <p>
+	 * The most recently used formats are cached, so calling this method for
+	 * each rendering is cheap; but keeping the {@link ContactFormat} is even
+	 * cheaper.
+	 * 
+	 * @param format
+	 *            the format
+	 * 
+	 * @return the compiled format
+	 */
+	static public ContactFormat compile(String format) {
+		ContactFormat compiled = cache.get(format);
+		if (compiled == null) {
+			compiled = new ContactFormat(format);
+			if (cache.size() >= MAX_CACHED)
+				cache.clear();
+			cache.put(format, compiled);
+		}
+
+		return compiled;
+	}
+
+	/**
+	 * Compile a list of comma-separated formats (as used by the
+	 * CONTACT_LIST_FORMAT display option).
+	 * 
+	 * @param formats
+	 *            the comma-separated formats
+	 * 
+	 * @return the compiled formats, in order
+	 */
+	static public List<ContactFormat> compileList(String formats) {
+		List<ContactFormat> compiled = new ArrayList<ContactFormat>();
+		if (formats != null) {
+			for (String format : formats.split(",")) {
+				compiled.add(compile(format));
+			}
+		}
+
+		return compiled;
+	}
+
+	/**
+	 * Return the format as given to {@link ContactFormat#compile(String)}.
+	 * 
+	 * @return the format
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Return the fields of the format, options included, as they appear in
+	 * the format (e.g., "FN@20").
+	 * 
+	 * @return the fields (read-only)
+	 */
+	public List<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Return a {@link String} representation of the given {@link Contact},
+	 * part by part, separated and padded (see
+	 * {@link Contact#toStringArray(ContactFormat, String, String, int, boolean)}
+	 * ).
+	 * 
+	 * @param contact
+	 *            the {@link Contact}
+	 * @param separator
+	 *            the separator {@link String} to use between fields
+	 * @param padding
+	 *            the {@link String} to use for left and right padding
+	 * @param width
+	 *            a fixed width or -1 for "as long as needed"
+	 * @param unicode
+	 *            allow Uniode or only ASCII characters
+	 * 
+	 * @return the {@link String} representation
+	 */
+	String[] format(Contact contact, String separator, String padding,
+			int width, boolean unicode) {
+		if (width > -1) {
+			int numOfFields = slots.length;
+			if (separator != null)
+				width -= (numOfFields - 1) * separator.length();
+			if (padding != null)
+				width -= (numOfFields) * (2 * padding.length());
+
+			if (width < 0)
+				width = 0;
+		}
+
+		String[] values = format(contact, width, unicode);
+		if (values.length == 0)
+			return values;
+
+		String[] str = new String[values.length * 2 - 1];
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				str[i * 2 - 1] = separator;
+
+			if (padding != null)
+				str[i * 2] = padding + values[i] + padding;
+			else
+				str[i * 2] = values[i];
+		}
+
+		return str;
+	}
+
+	/**
+	 * Return a {@link String} representation of the given {@link Contact},
+	 * part by part (see
+	 * {@link Contact#toStringArray(ContactFormat, int, boolean)}).
+	 * 
+	 * @param contact
+	 *            the {@link Contact}
+	 * @param width
+	 *            a fixed width or -1 for "as long as needed"
+	 * @param unicode
+	 *            allow Uniode or only ASCII characters
+	 * 
+	 * @return the {@link String} representation, one item per field
+	 */
+	String[] format(Contact contact, int width, boolean unicode) {
+		String[] values = new String[slots.length];
+
+		if (width == 0) {
+			Arrays.fill(values, "");
+			return values;
+		}
+
+		int totalSize = 0;
+		for (int i = 0; i < slots.length; i++) {
+			Slot slot = slots[i];
+			String value = getValue(contact, slot);
+
+			if (value == null) {
+				value = "";
+			} else {
+				value = StringUtils.sanitize(value, unicode);
+			}
+
+			if (slot.size > -1) {
+				value = StringUtils.padString(value, slot.size);
+			}
+
+			if (slot.binary) {
+				if (!value.equals(""))
+					values[i] = "x";
+				else
+					values[i] = " ";
+				totalSize++;
+			} else {
+				values[i] = value;
+				totalSize += value.length();
+			}
+		}
+
+		if (width > -1 && totalSize > width) {
+			int toDo = totalSize - width;
+			for (int i = slots.length - 1; toDo > 0 && i >= 0; i--) {
+				if (slots[i].size <= -1) {
+					int valueLength = values[i].length();
+					if (valueLength > 0) {
+						if (valueLength >= toDo) {
+							values[i] = values[i].substring(0, valueLength
+									- toDo);
+							toDo = 0;
+						} else {
+							values[i] = "";
+							toDo -= valueLength;
+						}
+					}
+				}
+			}
+
+			totalSize = width + toDo;
+		}
+
+		if (width > -1 && numOfFieldsToExpand > 0) {
+			int availablePadding = width - totalSize;
+
+			if (availablePadding > 0) {
+				int padPerItem = availablePadding / numOfFieldsToExpand;
+				int remainder = availablePadding % numOfFieldsToExpand;
+
+				for (int i = 0; i < values.length; i++) {
+					if (slots[i].expand) {
+						if (remainder > 0) {
+							values[i] = values[i]
+									+ StringUtils.padString("", remainder);
+							remainder = 0;
+						}
+						if (padPerItem > 0) {
+							values[i] = values[i]
+									+ StringUtils.padString("", padPerItem);
+						}
+					}
+				}
+
+				totalSize = width;
+			}
+		}
+
+		// do not exceed the maximum size
+		if (width > -1) {
+			int currentSize = 0;
+			for (int i = 0; i < values.length; i++) {
+				String value = values[i];
+				if (currentSize >= width) {
+					value = "";
+				} else if (currentSize + value.length() >= width) {
+					value = value.substring(0, width - currentSize);
+				}
+
+				values[i] = value;
+				currentSize += value.length();
+			}
+		}
+
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return format;
+	}
+
+	/**
+	 * Return the raw value of the given {@link Slot} for this
+	 * {@link Contact}.
+	 * 
+	 * @param contact
+	 *            the {@link Contact}
+	 * @param slot
+	 *            the {@link Slot}
+	 * 
+	 * @return the value, or NULL if none
+	 */
+	static private String getValue(Contact contact, Slot slot) {
+		if (slot.text != null)
+			return slot.text;
+
+		if (slot.valueNum >= 0) {
+			Data data = contact.getPreferredData(slot.name);
+			if (data != null) {
+				List<String> vv = data.getValues();
+				if (slot.valueNum < vv.size())
+					return vv.get(slot.valueNum);
+			}
+		} else if (slot.fieldNum >= 0) {
+			Data data = contact.getPreferredData(slot.name);
+			if (data != null) {
+				List<String> ff = data.getFields();
+				if (slot.fieldNum < ff.size())
+					return ff.get(slot.fieldNum);
+			}
+		} else if (slot.binary) {
+			// we don't need the *data* in binary mode...
+			return contact.hasData(slot.name) ? "x" : null;
+		} else {
+			return contact.getPreferredDataValue(slot.name);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Parse the given option (the part after an '@') into the {@link Slot}.
+	 * 
+	 * @param slot
+	 *            the {@link Slot} to configure
+	 * @param opt
+	 *            the option
+	 */
+	static private void parseOption(Slot slot, String opt) {
+		if (opt.equals("x")) {
+			slot.binary = true;
+		} else if (opt.equals("+")) {
+			slot.expand = true;
+		} else if (opt.length() > 0 && opt.charAt(0) == '(') {
+			try {
+				slot.valueNum = Integer.parseInt(opt.substring(1,
+						opt.length() - 1));
+			} catch (Exception e) {
+			}
+		} else if (opt.length() > 0 && opt.charAt(0) == '[') {
+			try {
+				slot.fieldNum = Integer.parseInt(opt.substring(1,
+						opt.length() - 1));
+			} catch (Exception e) {
+			}
+		} else {
+			try {
+				slot.size = Integer.parseInt(opt);
+			} catch (NumberFormatException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package be.nikiroo.jvcard;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, column-oriented store of {@link Contact}s: the {@link Contact}s,
+ * their {@link Data} and their {@link TypeInfo}s are kept as rows of
+ * primitive arrays, the values in one UTF-8 byte arena and the names (and
+ * type values) in a table of symbols.
+ * <p>
+ * The store is append-only: a {@link Contact} is stored as a record, from
+ * which a new {@link Contact} object can be created as often as needed.
+ * <p>
+ * This class is <b>not</b> thread-safe.
+ * 
+ * @author niki
+ */
+class ContactStore {
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	// symbols (names, groups and types):
+	private List<String> symbols = new ArrayList<String>();
+	private Map<String, Integer> symbolIds = new HashMap<String, Integer>();
+
+	// values:
+	private byte[] arena = new byte[4096];
+	private int arenaSize;
+
+	// contacts (their data are the rows [contactData[i], contactData[i+1])):
+	private int contacts;
+	private int[] contactData = new int[16];
+	private int[] contactBKey = new int[16];
+
+	// data (their types are the rows [dataTypes[i], dataTypes[i+1]) and
+	// their value is in arena[dataValue[i], dataValue[i+1])):
+	private int datas;
+	private int[] dataName = new int[64];
+	private int[] dataGroup = new int[64];
+	private int[] dataBKey = new int[64];
+	private int[] dataValue = new int[64];
+	private int[] dataTypes = new int[64];
+	/** The values of the binary data, which are kept as is */
+	private Map<Integer, Blob> blobs = new HashMap<Integer, Blob>();
+
+	// types:
+	private int types;
+	private int[] typeName = new int[64];
+	private int[] typeValue = new int[64];
+
+	/**
+	 * Store the given {@link Contact}.
+	 * 
+	 * @param contact
+	 *            the {@link Contact} to store
+	 * 
+	 * @return the record number of the {@link Contact} in this store
+	 */
+	public int add(Contact contact) {
+		if (contacts + 2 > contactData.length) {
+			contactData = Arrays.copyOf(contactData, contactData.length * 2);
+			contactBKey = Arrays.copyOf(contactBKey, contactBKey.length * 2);
+		}
+
+		contactData[contacts] = datas;
+		contactBKey[contacts] = contact.getNextBKey();
+		for (Data data : contact) {
+			addData(data);
+		}
+		contactData[contacts + 1] = datas;
+
+		return contacts++;
+	}
+
+	/**
+	 * Create a new {@link Contact} from the given record.
+	 * 
+	 * @param record
+	 *            the record number of the {@link Contact}
+	 * 
+	 * @return the new {@link Contact}
+	 */
+	public Contact get(int record) {
+		List<Data> content = new LinkedList<Data>();
+		for (int i = contactData[record]; i < contactData[record + 1]; i++) {
+			List<TypeInfo> infos = new LinkedList<TypeInfo>();
+			for (int j = dataTypes[i]; j < dataTypes[i + 1]; j++) {
+				infos.add(new TypeInfo(symbols.get(typeName[j]), symbols
+						.get(typeValue[j])));
+			}
+
+			String name = symbols.get(dataName[i]);
+			String group = dataGroup[i] < 0 ? null : symbols.get(dataGroup[i]);
+
+			Data data;
+			Blob blob = blobs.get(i);
+			if (blob != null) {
+				data = new Data(infos, name, blob, group);
+			} else {
+				data = new Data(infos, name, getValue(i), group);
+			}
+
+			if (dataBKey[i] >= 0 && data.isBinary())
+				data.resetB64Key(dataBKey[i]);
+
+			content.add(data);
+		}
+
+		return new Contact(content, contactBKey[record]);
+	}
+
+	/**
+	 * Return the raw value of the preferred UID of the given record, without
+	 * creating the {@link Contact} (see {@link Contact#getId()}).
+	 * 
+	 * @param record
+	 *            the record number of the {@link Contact}
+	 * 
+	 * @return the raw value, or NULL if none
+	 */
+	public String getRawId(int record) {
+		Integer uid = symbolIds.get("UID");
+		Integer pre = symbolIds.get("PRE");
+		if (uid == null)
+			return null;
+
+		int pref = -1;
+		int ipref = Integer.MAX_VALUE;
+		for (int i = contactData[record]; i < contactData[record + 1]; i++) {
+			if (dataName[i] != uid)
+				continue;
+
+			if (pref < 0)
+				pref = i;
+
+			int preferred = Integer.MAX_VALUE;
+			for (int j = dataTypes[i]; pre != null && j < dataTypes[i + 1]; j++) {
+				if (typeName[j] == pre) {
+					try {
+						preferred = Integer.parseInt(symbols.get(typeValue[j]));
+						break;
+					} catch (NumberFormatException e) {
+						// not a valid PRE, try the next one
+					}
+				}
+			}
+
+			if (preferred < ipref) {
+				pref = i;
+				ipref = preferred;
+			}
+		}
+
+		if (pref < 0)
+			return null;
+
+		return getValue(pref);
+	}
+
+	/**
+	 * Return the number of records in this store.
+	 * 
+	 * @return the number of records
+	 */
+	public int size() {
+		return contacts;
+	}
+
+	/**
+	 * Return the size of the values stored so far, in bytes.
+	 * 
+	 * @return the size
+	 */
+	public int getArenaSize() {
+		return arenaSize;
+	}
+
+	/**
+	 * Store the given {@link Data} and its {@link TypeInfo}s.
+	 * 
+	 * @param data
+	 *            the {@link Data}
+	 */
+	private void addData(Data data) {
+		if (datas + 2 > dataValue.length) {
+			int size = dataValue.length * 2;
+			dataName = Arrays.copyOf(dataName, size);
+			dataGroup = Arrays.copyOf(dataGroup, size);
+			dataBKey = Arrays.copyOf(dataBKey, size);
+			dataValue = Arrays.copyOf(dataValue, size);
+			dataTypes = Arrays.copyOf(dataTypes, size);
+		}
+
+		dataName[datas] = getSymbol(data.getName());
+		dataGroup[datas] = data.getGroup() == null ? -1 : getSymbol(data
+				.getGroup());
+		dataBKey[datas] = data.getB64Key();
+
+		dataValue[datas] = arenaSize;
+		if (data.getBlob() != null) {
+			blobs.put(datas, data.getBlob());
+		} else {
+			byte[] value = data.getRawValue().getBytes(UTF8);
+			if (arenaSize + value.length > arena.length) {
+				arena = Arrays.copyOf(arena,
+						Math.max(arena.length * 2, arenaSize + value.length));
+			}
+			System.arraycopy(value, 0, arena, arenaSize, value.length);
+			arenaSize += value.length;
+		}
+		dataValue[datas + 1] = arenaSize;
+
+		dataTypes[datas] = types;
+		for (TypeInfo type : data) {
+			if (types + 1 > typeName.length) {
+				typeName = Arrays.copyOf(typeName, typeName.length * 2);
+				typeValue = Arrays.copyOf(typeValue, typeValue.length * 2);
+			}
+
+			typeName[types] = getSymbol(type.getName());
+			typeValue[types] = getSymbol(type.getValue());
+			types++;
+		}
+		dataTypes[datas + 1] = types;
+
+		datas++;
+	}
+
+	/**
+	 * Return the raw value of the given data row.
+	 * 
+	 * @param data
+	 *            the row
+	 * 
+	 * @return the raw value
+	 */
+	private String getValue(int data) {
+		return new String(arena, dataValue[data], dataValue[data + 1]
+				- dataValue[data], UTF8);
+	}
+
+	/**
+	 * Return the number of the given symbol, adding it if needed.
+	 * 
+	 * @param symbol
+	 *            the symbol
+	 * 
+	 * @return its number
+	 */
+	private int getSymbol(String symbol) {
+		Integer id = symbolIds.get(symbol);
+		if (id == null) {
+			id = symbols.size();
+			symbols.add(symbol);
+			symbolIds.put(symbol, id);
+		}
+
+		return id;
+	}
+}
@@ -0,0 +1,94 @@
+package be.nikiroo.jvcard;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A {@link Writer} which counts the (UTF-8) bytes written through it, and
+ * remembers where the {@link FileBlob}s were copied.
+ * 
+ * @author niki
+ */
+class CountingWriter extends Writer {
+	private Writer writer;
+	private long count;
+	private Map<FileBlob, Long> copies = new IdentityHashMap<FileBlob, Long>();
+
+	/**
+	 * Create a new {@link CountingWriter}.
+	 * 
+	 * @param writer
+	 *            the UTF-8 {@link Writer} to write to
+	 */
+	public CountingWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * The given {@link FileBlob} is about to be copied here.
+	 * 
+	 * @param blob
+	 *            the {@link FileBlob}
+	 */
+	public void copying(FileBlob blob) {
+		copies.put(blob, count);
+	}
+
+	/**
+	 * Return the {@link FileBlob}s copied so far, with their position.
+	 * 
+	 * @return the {@link FileBlob}s
+	 */
+	public Map<FileBlob, Long> getCopies() {
+		return copies;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			count += size(cbuf[i]);
+		}
+
+		writer.write(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			count += size(str.charAt(i));
+		}
+
+		writer.write(str, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	/**
+	 * Return the size of the given character in UTF-8 (a surrogate pair is 4
+	 * bytes, 2 per surrogate).
+	 * 
+	 * @param car
+	 *            the character
+	 * 
+	 * @return its size in bytes
+	 */
+	static private int size(char car) {
+		if (car < 0x80)
+			return 1;
+		if (car < 0x800 || Character.isHighSurrogate(car)
+				|| Character.isLowSurrogate(car))
+			return 2;
+
+		return 3;
+	}
+}
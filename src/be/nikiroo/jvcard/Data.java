@@ -1,8 +1,10 @@
 package be.nikiroo.jvcard;
 
 import java.security.InvalidParameterException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 /**
  * A {@link Data} is a piece of information present in a {@link Contact}. It is
@@ -14,37 +16,112 @@ import java.util.List;
  * @author niki
  */
 public class Data extends BaseClass<TypeInfo> {
+	/**
+	 * The parts of the structured {@link Data} values (N, BDAY and ADR), see
+	 * {@link Data#getPart(DataPart)}.
+	 * 
+	 * @author niki
+	 */
 	public enum DataPart {
-		FN_FAMILY, FN_GIVEN, FN_ADDITIONAL, // Name
-		FN_PRE, FN_POST, // Pre/Post
-		BDAY_YYYY, BDAY_MM, BDAY_DD, // BDay
+		FN_FAMILY("N", 0), FN_GIVEN("N", 1), FN_ADDITIONAL("N", 2), // Name
+		FN_PRE("N", 3), FN_POST("N", 4), // Pre/Post
+		BDAY_YYYY("BDAY", 0), BDAY_MM("BDAY", 1), BDAY_DD("BDAY", 2), // BDay
 		// Address:
-		ADR_PBOX, ADR_EXTENDED, ADR_STREET, ADR_CITY, ADR_REGION, ADR_POSTAL_CODE, ADR_COUNTRY
+		ADR_PBOX("ADR", 0), ADR_EXTENDED("ADR", 1), ADR_STREET("ADR", 2), ADR_CITY(
+				"ADR", 3), ADR_REGION("ADR", 4), ADR_POSTAL_CODE("ADR", 5), ADR_COUNTRY(
+				"ADR", 6);
+
+		private String name;
+		private int index;
+
+		private DataPart(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+
+		/**
+		 * Return the name of the {@link Data} this part belongs to.
+		 * 
+		 * @return the name (N, BDAY or ADR)
+		 */
+		public String getName() {
+			return name;
+		}
 	}
 
 	private String name;
-	private String value;
+	private String value; // NULL for binary Data, see blob
+	private Blob blob; // the shared value of binary Data
 	private String group;
 	private int b64; // -1 = no, 0 = still not ordered, the rest is order
 
+	// caches, reset when the value changes (volatile: concurrent readers,
+	// which fill them under the read lock so a change cannot be missed):
+	private volatile String unescapedValue;
+	private volatile List<String> values;
+	private volatile List<String> fields;
+	private volatile String[] parts;
+	private int preferred; // cached PRE, only valid if preferredKnown
+	private volatile boolean preferredKnown;
+
 	/**
 	 * Create a new {@link Data} with the given values.
 	 * 
 	 * @param types
 	 *            the types of this {@link Data}
 	 * @param name
-	 *            its name (<b>MUST NOT</b> be NULL)
+	 *            its name (<b>MUST NOT</b> be NULL), will be shared through
+	 *            the {@link SymbolTable}
 	 * @param value
 	 *            its value (<b>MUST NOT</b> be NULL)
 	 * @param group
-	 *            its group if any (or NULL if none)
+	 *            its group if any (or NULL if none), will be shared through
+	 *            the {@link SymbolTable}
 	 */
 	public Data(List<TypeInfo> types, String name, String value, String group) {
-		super(types);
+		this(types, name, group);
+
+		value.toString(); // crash NOW if null
+		storeValue(value);
+	}
+
+	/**
+	 * Create a new {@link Data} with the given values.
+	 * 
+	 * @param types
+	 *            the types of this {@link Data}
+	 * @param name
+	 *            its name (<b>MUST NOT</b> be NULL), will be shared through
+	 *            the {@link SymbolTable}
+	 * @param value
+	 *            its value (<b>MUST NOT</b> be NULL), which is only kept as a
+	 *            {@link Blob} if this {@link Data} is binary
+	 * @param group
+	 *            its group if any (or NULL if none), will be shared through
+	 *            the {@link SymbolTable}
+	 */
+	public Data(List<TypeInfo> types, String name, Blob value, String group) {
+		this(types, name, group);
+
+		if (isBinary()) {
+			blob = value;
+		} else {
+			this.value = value.getValue();
+		}
+	}
 
-		this.name = name.toUpperCase();
-		this.value = value.toString(); // crash NOW if null
-		this.group = group;
+	/**
+	 * Create a new {@link Data} without value.
+	 * 
+	 * @param types
+	 *            the types of this {@link Data}
+	 * @param name
+	 *            its name (<b>MUST NOT</b> be NULL)
+	 * @param group
+	 *            its group if any (or NULL if none)
+	 */
+	private Data(List<TypeInfo> types, String name, String group) {
+		super(types);
 
 		b64 = -1;
 		for (TypeInfo type : this) {
@@ -54,6 +131,37 @@ public class Data extends BaseClass<TypeInfo> {
 				break;
 			}
 		}
+
+		this.name = SymbolTable.getName(name);
+		this.group = SymbolTable.get(group);
+	}
+
+	/**
+	 * Create a copy of the given {@link Data} and its {@link TypeInfo}s; the
+	 * BKey is kept.
+	 * 
+	 * @param other
+	 *            the {@link Data} to copy
+	 */
+	private Data(Data other) {
+		super(other.copyChildren());
+
+		name = other.name;
+		value = other.value;
+		blob = other.blob;
+		group = other.group;
+		b64 = other.b64;
+
+		// the caches are immutable
+		unescapedValue = other.unescapedValue;
+		values = other.values;
+		fields = other.fields;
+		parts = other.parts;
+	}
+
+	@Override
+	public Data copy() {
+		return new Data(this);
 	}
 
 	/**
@@ -71,7 +179,24 @@ public class Data extends BaseClass<TypeInfo> {
 	 * @return the value
 	 */
 	public String getValue() {
-		return unescape(value);
+		// binary values can be huge, their Blob decides what to keep
+		Blob blob = this.blob;
+		if (blob != null)
+			return unescape(blob.getValue());
+
+		String unescapedValue = this.unescapedValue;
+		if (unescapedValue == null) {
+			Lock lock = readLock();
+			lock.lock();
+			try {
+				unescapedValue = unescape(rawValue());
+				this.unescapedValue = unescapedValue;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		return unescapedValue;
 	}
 
 	/**
@@ -90,7 +215,17 @@ public class Data extends BaseClass<TypeInfo> {
 	 * @return the raw value
 	 */
 	public String getRawValue() {
-		return value;
+		return rawValue();
+	}
+
+	/**
+	 * Return the shared {@link Blob} which holds the value of this binary
+	 * {@link Data}.
+	 * 
+	 * @return the {@link Blob}, or NULL if this {@link Data} is not binary
+	 */
+	public Blob getBlob() {
+		return blob;
 	}
 
 	/**
@@ -100,20 +235,47 @@ public class Data extends BaseClass<TypeInfo> {
 	 *            the new raw value
 	 */
 	public void setRawValue(String value) {
-		if ((value == null && this.value != null)
-				|| (value != null && !value.equals(this.value))) {
-			this.value = value;
-			setDirty();
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			String current = rawValue();
+			if ((value == null && current != null)
+					|| (value != null && !value.equals(current))) {
+				beforeChange();
+				storeValue(value);
+				unescapedValue = null;
+				values = null;
+				fields = null;
+				parts = null;
+				setDirty();
+				fireValueChanged();
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	/**
 	 * Return the {@link List} of comma-listed values from this {@link Data}.
+	 * <p>
+	 * The {@link List} is cached and cannot be modified.
 	 * 
 	 * @return the {@link List} of values
 	 */
 	public List<String> getValues() {
-		return getList(',');
+		List<String> values = this.values;
+		if (values == null) {
+			Lock lock = readLock();
+			lock.lock();
+			try {
+				values = getList(',');
+				this.values = values;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		return values;
 	}
 
 	/**
@@ -129,11 +291,25 @@ public class Data extends BaseClass<TypeInfo> {
 	/**
 	 * Return the {@link List} of semi-column-listed fields from this
 	 * {@link Data}.
+	 * <p>
+	 * The {@link List} is cached and cannot be modified.
 	 * 
 	 * @return the {@link List} of values
 	 */
 	public List<String> getFields() {
-		return getList(';');
+		List<String> fields = this.fields;
+		if (fields == null) {
+			Lock lock = readLock();
+			lock.lock();
+			try {
+				fields = getList(';');
+				this.fields = fields;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		return fields;
 	}
 
 	/**
@@ -146,6 +322,50 @@ public class Data extends BaseClass<TypeInfo> {
 		setList(values, ';');
 	}
 
+	/**
+	 * Return the given part of this structured {@link Data} (N, BDAY or ADR),
+	 * unescaped.
+	 * <p>
+	 * The value is parsed once, and kept until it changes.
+	 * 
+	 * @param part
+	 *            the part to get
+	 * 
+	 * @return the part, or NULL if this {@link Data} has no such part (the
+	 *         part belongs to another name or the value is too short)
+	 */
+	public String getPart(DataPart part) {
+		if (!name.equals(part.getName()))
+			return null;
+
+		String[] parts = this.parts;
+		if (parts == null) {
+			Lock lock = readLock();
+			lock.lock();
+			try {
+				if (part.getName().equals("BDAY")) {
+					parts = parseDate(getValue());
+				} else {
+					List<String> fields = getFields();
+					parts = new String[fields.size()];
+					for (int i = 0; i < parts.length; i++) {
+						parts[i] = unescape(fields.get(i));
+					}
+				}
+
+				// only published when complete
+				this.parts = parts;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		if (part.index < parts.length)
+			return parts[part.index];
+
+		return null;
+	}
+
 	/**
 	 * Return the group of this {@link Data}
 	 * 
@@ -162,10 +382,18 @@ public class Data extends BaseClass<TypeInfo> {
 	 *            the new group
 	 */
 	public void setGroup(String group) {
-		if ((group == null && this.group != null)
-				|| (group != null && !group.equals(this.group))) {
-			this.group = group;
-			setDirty();
+		Lock lock = writeLock();
+		lock.lock();
+		try {
+			if ((group == null && this.group != null)
+					|| (group != null && !group.equals(this.group))) {
+				beforeChange();
+				this.group = SymbolTable.get(group);
+				setDirty();
+				fireValueChanged();
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -192,22 +420,47 @@ public class Data extends BaseClass<TypeInfo> {
 
 	/**
 	 * Return the preferred value of this {@link Data}, or
-	 * {@link Integer#MAX_VALUE} if none.
+	 * {@link Integer#MAX_VALUE} if none (or if it is not a valid number).
+	 * <p>
+	 * The value is cached until the types of this {@link Data} change.
 	 * 
 	 * @return the preferred value
 	 */
 	public int getPreferred() {
-		for (TypeInfo type : this) {
-			if (type.getName().equals("PRE")) {
-				try {
-					return Integer.parseInt(type.getValue());
-				} catch (NumberFormatException e) {
-					e.printStackTrace();
+		if (preferredKnown)
+			return preferred;
+
+		Lock lock = readLock();
+		lock.lock();
+		try {
+			int preferred = Integer.MAX_VALUE;
+			for (TypeInfo type : this) {
+				if (type.getName().equals("PRE")) {
+					try {
+						preferred = Integer.parseInt(type.getValue());
+						break;
+					} catch (NumberFormatException e) {
+						// not a valid PRE, try the next one
+					}
 				}
 			}
+
+			this.preferred = preferred;
+			preferredKnown = true;
+
+			return preferred;
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		return Integer.MAX_VALUE;
+	/**
+	 * Also forget the cached preferred value, since the types may have changed.
+	 */
+	@Override
+	void setDirty() {
+		preferredKnown = false;
+		super.setDirty();
 	}
 
 	/**
@@ -227,7 +480,10 @@ public class Data extends BaseClass<TypeInfo> {
 			throw new InvalidParameterException(
 					"Cannot remove the BKey on a binary object");
 
-		b64 = i;
+		if (b64 != i) {
+			beforeChange();
+			b64 = i;
+		}
 	}
 
 	/**
@@ -243,11 +499,12 @@ public class Data extends BaseClass<TypeInfo> {
 	 * @param the
 	 *            separator
 	 * 
-	 * @return the {@link List} of values
+	 * @return the (read-only) {@link List} of values
 	 */
 	private List<String> getList(char sep) {
-		List<String> rep = new LinkedList<String>();
+		List<String> rep = new ArrayList<String>();
 
+		String value = rawValue();
 		if (value != null && value.length() > 0) {
 			int last = 0;
 			for (int i = 0; i < value.length(); i++) {
@@ -262,7 +519,69 @@ public class Data extends BaseClass<TypeInfo> {
 				rep.add(value.substring(last));
 		}
 
-		return rep;
+		return Collections.unmodifiableList(rep);
+	}
+
+	/**
+	 * Return the raw value of this {@link Data}, wherever it is stored.
+	 * 
+	 * @return the raw value
+	 */
+	private String rawValue() {
+		Blob blob = this.blob;
+		if (blob != null)
+			return blob.getValue();
+
+		return value;
+	}
+
+	/**
+	 * Store the given raw value: in the {@link BlobStore} for binary
+	 * {@link Data}, so identical values are shared, or as is.
+	 * 
+	 * @param value
+	 *            the raw value
+	 */
+	private void storeValue(String value) {
+		if (b64 >= 0 && value != null) {
+			this.blob = BlobStore.get(value);
+			this.value = null;
+		} else {
+			this.value = value;
+			this.blob = null;
+		}
+	}
+
+	/**
+	 * Split the given date into its year, month and day parts.
+	 * <p>
+	 * Both the basic (<tt>19800102</tt>) and extended (<tt>1980-01-02</tt>)
+	 * formats are supported, an optional time (<tt>T...</tt>) is ignored.
+	 * 
+	 * @param date
+	 *            the date to split
+	 * 
+	 * @return the parts (can be empty if the date is not valid)
+	 */
+	static private String[] parseDate(String date) {
+		if (date == null)
+			return new String[0];
+
+		int timeIndex = date.indexOf('T');
+		if (timeIndex >= 0)
+			date = date.substring(0, timeIndex);
+		date = date.trim();
+
+		if (date.length() == 10 && date.charAt(4) == '-'
+				&& date.charAt(7) == '-') {
+			return new String[] { date.substring(0, 4), date.substring(5, 7),
+					date.substring(8, 10) };
+		} else if (date.length() == 8) {
+			return new String[] { date.substring(0, 4), date.substring(4, 6),
+					date.substring(6, 8) };
+		}
+
+		return new String[0];
 	}
 
 	/**
@@ -289,7 +608,7 @@ public class Data extends BaseClass<TypeInfo> {
 			first = false;
 		}
 
-		value = builder.toString();
+		setRawValue(builder.toString());
 	}
 
 	@Override
@@ -299,12 +618,25 @@ public class Data extends BaseClass<TypeInfo> {
 
 	@Override
 	public String getState() {
-		return ("" + name + value + group).replace(' ', '_');
+		return ("" + name + rawValue() + group).replace(' ', '_');
+	}
+
+	@Override
+	void updateState(StateDigest digest) {
+		// the value can be huge (binary data), so we do not concatenate it
+		digest.update(name);
+		Blob blob = this.blob;
+		if (blob != null) {
+			blob.updateState(digest);
+		} else {
+			digest.update(value);
+		}
+		digest.update(group);
 	}
 
 	@Override
 	public String toString() {
-		String out = name + ": " + value;
+		String out = name + ": " + rawValue();
 		if (group != null && !group.isEmpty()) {
 			out += " (" + group + ")";
 		}
@@ -0,0 +1,348 @@
+package be.nikiroo.jvcard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A {@link Blob} whose value was left in the {@link File} it was read from,
+ * and is only read when needed.
+ * <p>
+ * The value is kept as it was found in the {@link File}, that is, folded on
+ * multiple lines: it is unfolded when read, and can be copied as is when
+ * saved (see {@link FileBlob#copyTo(Appendable)}).
+ * <p>
+ * Note that the {@link File} <b>must not</b> be changed while the value is
+ * still needed: the code which replaces it must call
+ * {@link FileBlob#detach(File, Collection)} first, so the values still used
+ * are read before (as done by {@link Card} and
+ * {@link be.nikiroo.jvcard.parsers.ContactWriter}).
+ * 
+ * @author niki
+ */
+public class FileBlob extends Blob {
+	/** The number of characters kept to check the value is still there */
+	static private final int HEAD = 16;
+	/** The live {@link FileBlob}s of each {@link File} */
+	static private final Map<File, Map<FileBlob, Boolean>> blobs = new HashMap<File, Map<FileBlob, Boolean>>();
+
+	private File file;
+	private long offset;
+	private long length;
+	private long lastModified;
+	private String head;
+	/** The raw value, once read because the {@link File} was replaced */
+	private String raw;
+	/** The unfolded value, kept as long as memory allows */
+	private volatile SoftReference<String> value;
+
+	/**
+	 * Create a new {@link FileBlob}.
+	 * 
+	 * @param file
+	 *            the {@link File} containing the value (it will be made
+	 *            canonical)
+	 * @param offset
+	 *            the position of the value in the {@link File}, in bytes
+	 * @param length
+	 *            the length of the (folded) value, in bytes
+	 * @param start
+	 *            the first characters of the value, used to check that it is
+	 *            still there when read (can be NULL)
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public FileBlob(File file, long offset, long length, String start)
+			throws IOException {
+		super(null, null);
+
+		this.file = file.getCanonicalFile();
+		this.offset = offset;
+		this.length = length;
+		this.lastModified = file.lastModified();
+		if (start != null && start.length() > HEAD)
+			start = start.substring(0, HEAD);
+		this.head = start;
+
+		register(this, this.file);
+	}
+
+	/**
+	 * Return the {@link File} containing the value.
+	 * 
+	 * @return the (canonical) {@link File}
+	 */
+	public synchronized File getFile() {
+		return file;
+	}
+
+	/**
+	 * Read the value from the {@link File} on first use.
+	 * 
+	 * @throws RuntimeException
+	 *             if the value cannot be read anymore (the {@link File} was
+	 *             changed without {@link FileBlob#detach(File, Collection)})
+	 */
+	@Override
+	public String getValue() {
+		SoftReference<String> ref = value;
+		String val = ref == null ? null : ref.get();
+		if (val == null) {
+			val = unfold(read());
+			value = new SoftReference<String>(val);
+		}
+
+		return val;
+	}
+
+	/**
+	 * Copy the value as it is in the {@link File} (folded, the continuation
+	 * lines included) into the given writer.
+	 * 
+	 * @param writer
+	 *            the writer
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error, or if the {@link File} changed
+	 */
+	public void copyTo(Appendable writer) throws IOException {
+		String raw = readRaw();
+		if (writer instanceof CountingWriter) {
+			((CountingWriter) writer).copying(this);
+		}
+
+		writer.append(raw);
+	}
+
+	/**
+	 * Also read the value without keeping it if it was not read yet.
+	 */
+	@Override
+	void updateState(StateDigest digest) {
+		SoftReference<String> ref = value;
+		String val = ref == null ? null : ref.get();
+		if (val == null)
+			val = unfold(read());
+
+		digest.update(val);
+	}
+
+	/**
+	 * The value has been copied as is to the given {@link File}, which now
+	 * replaces the one we read it from.
+	 * 
+	 * @param file
+	 *            the new {@link File}
+	 * @param offset
+	 *            the new position of the value in the {@link File}
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	synchronized void relocate(File file, long offset) throws IOException {
+		if (raw == null)
+			unregister(this, this.file);
+
+		this.file = file.getCanonicalFile();
+		this.offset = offset;
+		this.lastModified = file.lastModified();
+		this.raw = null;
+
+		register(this, this.file);
+	}
+
+	/**
+	 * Read the value now and keep it, so the {@link File} is not needed
+	 * anymore.
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error, or if the {@link File} changed
+	 */
+	private synchronized void load() throws IOException {
+		if (raw == null) {
+			raw = readRaw();
+			unregister(this, file);
+		}
+	}
+
+	/**
+	 * Read the raw (folded) value from the {@link File}.
+	 * 
+	 * @return the raw value
+	 * 
+	 * @throws RuntimeException
+	 *             if it cannot be read
+	 */
+	private String read() {
+		try {
+			return readRaw();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the raw (folded) value from the {@link File}.
+	 * 
+	 * @return the raw value
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error, or if the {@link File} changed
+	 */
+	private synchronized String readRaw() throws IOException {
+		if (raw != null)
+			return raw;
+
+		if (file.lastModified() != lastModified
+				|| file.length() < offset + length) {
+			throw new IOException("The file changed since it was read: "
+					+ file);
+		}
+
+		byte[] data = new byte[(int) length];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(offset);
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+
+		String folded = new String(data, "UTF-8");
+		if (head != null && !folded.startsWith(head)) {
+			throw new IOException("The file changed since it was read: "
+					+ file);
+		}
+
+		return folded;
+	}
+
+	/**
+	 * The given {@link File} is about to be replaced: the values of the
+	 * {@link FileBlob}s which still use it are read now, and kept in memory
+	 * from then on.
+	 * 
+	 * @param file
+	 *            the (canonical) {@link File}
+	 * @param except
+	 *            the {@link FileBlob}s which will not need it (for instance,
+	 *            because they were copied to the new {@link File} and will be
+	 *            relocated there), can be NULL
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error, or if the {@link File} changed since
+	 *             some of the values were left there (they are lost, and the
+	 *             {@link File} should not be replaced)
+	 */
+	public static void detach(File file, Collection<FileBlob> except)
+			throws IOException {
+		List<FileBlob> list;
+		synchronized (blobs) {
+			Map<FileBlob, Boolean> map = blobs.get(file);
+			if (map == null)
+				return;
+			list = new ArrayList<FileBlob>(map.keySet());
+		}
+
+		for (FileBlob blob : list) {
+			if (except == null || !except.contains(blob))
+				blob.load();
+		}
+	}
+
+	/**
+	 * Check if the values of some live {@link FileBlob}s were left in the
+	 * given {@link File}.
+	 * 
+	 * @param file
+	 *            the (canonical) {@link File}
+	 * 
+	 * @return TRUE if they were
+	 */
+	static boolean isUsed(File file) {
+		synchronized (blobs) {
+			Map<FileBlob, Boolean> map = blobs.get(file);
+			return map != null && !map.isEmpty();
+		}
+	}
+
+	/**
+	 * Remember that the given {@link FileBlob} uses the given {@link File}.
+	 * 
+	 * @param blob
+	 *            the {@link FileBlob}
+	 * @param file
+	 *            the (canonical) {@link File}
+	 */
+	static private void register(FileBlob blob, File file) {
+		synchronized (blobs) {
+			Map<FileBlob, Boolean> map = blobs.get(file);
+			if (map == null) {
+				map = new WeakHashMap<FileBlob, Boolean>();
+				blobs.put(file, map);
+			}
+			map.put(blob, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Forget that the given {@link FileBlob} uses the given {@link File}.
+	 * 
+	 * @param blob
+	 *            the {@link FileBlob}
+	 * @param file
+	 *            the (canonical) {@link File}
+	 */
+	static private void unregister(FileBlob blob, File file) {
+		synchronized (blobs) {
+			Map<FileBlob, Boolean> map = blobs.get(file);
+			if (map != null) {
+				map.remove(blob);
+				if (map.isEmpty())
+					blobs.remove(file);
+			}
+		}
+	}
+
+	/**
+	 * Unfold the given value: the lines are joined together, without the
+	 * white spaces which surround the continuation lines (the first line is
+	 * only trimmed at the end, as it follows the name of the data).
+	 * 
+	 * @param raw
+	 *            the value to unfold
+	 * 
+	 * @return the unfolded value
+	 */
+	static private String unfold(String raw) {
+		StringBuilder builder = new StringBuilder(raw.length());
+
+		int start = 0;
+		for (int i = 0; i <= raw.length(); i++) {
+			if (i == raw.length() || raw.charAt(i) == '\n'
+					|| raw.charAt(i) == '\r') {
+				int from = start;
+				int to = i;
+				if (start > 0) {
+					while (from < to && raw.charAt(from) <= ' ')
+						from++;
+				}
+				while (to > from && raw.charAt(to - 1) <= ' ')
+					to--;
+
+				builder.append(raw, from, to);
+				start = i + 1;
+			}
+		}
+
+		return builder.toString();
+	}
+}
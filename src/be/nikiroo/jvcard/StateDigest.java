@@ -0,0 +1,229 @@
+package be.nikiroo.jvcard;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An incremental digest used to compute the content states of the
+ * {@link BaseClass} elements.
+ * <p>
+ * The state of an element is fed piece by piece into the digest, so it never
+ * has to be concatenated into a single (and potentially huge, think PHOTO)
+ * {@link String}.
+ * 
+ * @author niki
+ */
+public abstract class StateDigest {
+	/**
+	 * The supported hash algorithms.
+	 * 
+	 * @author niki
+	 */
+	public enum Algorithm {
+		/**
+		 * MD5, used by the remote protocol (both sides must agree on the
+		 * content states).
+		 */
+		MD5,
+		/**
+		 * A fast, non cryptographic 128-bit hash, only meant for in-process
+		 * comparisons.
+		 */
+		FAST,
+	}
+
+	/** The size in bytes of the digests, whatever the {@link Algorithm} */
+	static public final int SIZE = 16;
+
+	static private Algorithm localAlgorithm = Algorithm.FAST;
+
+	/**
+	 * Create a new {@link StateDigest} for the given {@link Algorithm}.
+	 * 
+	 * @param algorithm
+	 *            the {@link Algorithm} to use
+	 * 
+	 * @return the new {@link StateDigest}
+	 */
+	static public StateDigest getInstance(Algorithm algorithm) {
+		switch (algorithm) {
+		case MD5:
+			return new Md5Digest();
+		case FAST:
+		default:
+			return new FastDigest();
+		}
+	}
+
+	/**
+	 * Return the {@link Algorithm} to use for in-process comparisons (see
+	 * {@link BaseClass#getLocalContentState(boolean)}).
+	 * 
+	 * @return the {@link Algorithm}, {@link Algorithm#FAST} by default
+	 */
+	static public Algorithm getLocalAlgorithm() {
+		return localAlgorithm;
+	}
+
+	/**
+	 * Change the {@link Algorithm} to use for in-process comparisons (see
+	 * {@link BaseClass#getLocalContentState(boolean)}).
+	 * 
+	 * @param algorithm
+	 *            the new {@link Algorithm}
+	 */
+	static public void setLocalAlgorithm(Algorithm algorithm) {
+		if (algorithm != null)
+			localAlgorithm = algorithm;
+	}
+
+	/**
+	 * Feed the given {@link CharSequence} to the digest (NULL is allowed and
+	 * will not be confused with "null").
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void update(CharSequence value) {
+		if (value == null) {
+			update((char) 0);
+		} else {
+			for (int i = 0; i < value.length(); i++) {
+				update(value.charAt(i));
+			}
+		}
+
+		// separator, so "ab"+"c" and "a"+"bc" are different
+		update((char) 1);
+	}
+
+	/**
+	 * Feed the given character to the digest.
+	 * 
+	 * @param c
+	 *            the character
+	 */
+	abstract public void update(char c);
+
+	/**
+	 * Feed the given bytes to the digest.
+	 * 
+	 * @param data
+	 *            the bytes
+	 */
+	abstract public void update(byte[] data);
+
+	/**
+	 * Complete the digest and return its value. The {@link StateDigest} cannot
+	 * be used anymore after that.
+	 * 
+	 * @return the digest value ({@link StateDigest#SIZE} bytes)
+	 */
+	abstract public byte[] digest();
+
+	/**
+	 * A MD5 {@link StateDigest}: the characters are UTF-8 encoded on the fly
+	 * (surrogates are encoded one by one) through a small buffer.
+	 * 
+	 * @author niki
+	 */
+	static private class Md5Digest extends StateDigest {
+		private MessageDigest md;
+		private byte[] buffer = new byte[256];
+		private int len;
+
+		public Md5Digest() {
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				// MD5 is required on all Java platforms
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void update(char c) {
+			if (len + 3 > buffer.length)
+				flush();
+
+			if (c < 0x80) {
+				buffer[len++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[len++] = (byte) (0xc0 | (c >> 6));
+				buffer[len++] = (byte) (0x80 | (c & 0x3f));
+			} else {
+				buffer[len++] = (byte) (0xe0 | (c >> 12));
+				buffer[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[len++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+
+		@Override
+		public void update(byte[] data) {
+			flush();
+			md.update(data);
+		}
+
+		@Override
+		public byte[] digest() {
+			flush();
+			return md.digest();
+		}
+
+		private void flush() {
+			md.update(buffer, 0, len);
+			len = 0;
+		}
+	}
+
+	/**
+	 * A fast 128-bit {@link StateDigest} made of 2 independent 64-bit lanes,
+	 * with a MurmurHash3 finaliser.
+	 * 
+	 * @author niki
+	 */
+	static private class FastDigest extends StateDigest {
+		private long h1 = 0x9E3779B97F4A7C15L;
+		private long h2 = 0xC2B2AE3D27D4EB4FL;
+		private long length;
+
+		@Override
+		public void update(char c) {
+			h1 = (h1 ^ c) * 0x100000001B3L;
+			h2 = Long.rotateLeft(h2 ^ c, 31) * 0x87C37B91114253D5L;
+			length++;
+		}
+
+		@Override
+		public void update(byte[] data) {
+			for (byte b : data) {
+				update((char) (b & 0xff));
+			}
+		}
+
+		@Override
+		public byte[] digest() {
+			long a = fmix(h1 ^ length);
+			long b = fmix(h2 ^ length);
+			a += b;
+			b += a;
+
+			byte[] hash = new byte[SIZE];
+			for (int i = 0; i < 8; i++) {
+				hash[i] = (byte) (a >>> (56 - 8 * i));
+				hash[i + 8] = (byte) (b >>> (56 - 8 * i));
+			}
+
+			return hash;
+		}
+
+		private long fmix(long k) {
+			k ^= k >>> 33;
+			k *= 0xFF51AFD7ED558CCDL;
+			k ^= k >>> 33;
+			k *= 0xC4CEB9FE1A85EC53L;
+			k ^= k >>> 33;
+			return k;
+		}
+	}
+}
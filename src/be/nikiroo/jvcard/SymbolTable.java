@@ -0,0 +1,76 @@
+package be.nikiroo.jvcard;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps a canonical instance of the small {@link String}s that are
+ * repeated all over a {@link Card}: the names of the {@link Data} and
+ * {@link TypeInfo} (TEL, EMAIL, TYPE, ENCODING...), the {@link Data} groups
+ * and the short {@link TypeInfo} values (HOME, WORK...).
+ * <p>
+ * The canonical instances are the same as the ones of the JVM {@link String}
+ * pool, so a name returned by this class is identical (<tt>==</tt>) to the
+ * equivalent {@link String} literal.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author niki
+ */
+public class SymbolTable {
+	/** Do not keep more symbols than that, to protect against bad input */
+	static private final int MAX_SYMBOLS = 10000;
+	/** Longer values will not be shared */
+	static private final int MAX_LENGTH = 32;
+
+	static private Map<String, String> names = new ConcurrentHashMap<String, String>();
+	static private Map<String, String> symbols = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Return the canonical, upper case instance of the given name.
+	 * 
+	 * @param name
+	 *            the name (<b>MUST NOT</b> be NULL)
+	 * 
+	 * @return the upper case canonical instance
+	 */
+	static public String getName(String name) {
+		String canonical = names.get(name);
+		if (canonical == null) {
+			canonical = name.toUpperCase();
+			if (names.size() < MAX_SYMBOLS) {
+				canonical = canonical.intern();
+				names.put(name, canonical);
+			}
+		}
+
+		return canonical;
+	}
+
+	/**
+	 * Return the canonical instance of the given value, as-is.
+	 * <p>
+	 * Long values are returned untouched (they are not expected to be
+	 * repeated).
+	 * 
+	 * @param value
+	 *            the value, can be NULL
+	 * 
+	 * @return the canonical instance, or NULL if value was NULL
+	 */
+	static public String get(String value) {
+		if (value == null || value.length() > MAX_LENGTH)
+			return value;
+
+		String canonical = symbols.get(value);
+		if (canonical == null) {
+			canonical = value;
+			if (symbols.size() < MAX_SYMBOLS) {
+				canonical = canonical.intern();
+				symbols.put(canonical, canonical);
+			}
+		}
+
+		return canonical;
+	}
+}
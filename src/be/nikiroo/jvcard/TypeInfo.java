@@ -8,20 +8,38 @@ package be.nikiroo.jvcard;
 public class TypeInfo extends BaseClass<TypeInfo> {
 	private String name;
 	private String value;
+	private String unescapedValue;
 
 	/**
 	 * Create a new {@link TypeInfo}.
 	 * 
 	 * @param name
-	 *            the name of this {@link TypeInfo} (<b>MUST NOT</b> be NULL)
+	 *            the name of this {@link TypeInfo} (<b>MUST NOT</b> be NULL),
+	 *            will be shared through the {@link SymbolTable}
 	 * @param value
-	 *            its value (<b>MUST NOT</b> be NULL)
+	 *            its value (<b>MUST NOT</b> be NULL), will be shared through
+	 *            the {@link SymbolTable} if short
 	 */
 	public TypeInfo(String name, String value) {
 		super(null);
 
-		this.name = name.toUpperCase();
-		this.value = escape(value.toString()); // crash NOW if null
+		this.name = SymbolTable.getName(name);
+		// crash NOW if null:
+		this.value = SymbolTable.get(escape(value.toString()));
+	}
+
+	/**
+	 * Create a copy of the given {@link TypeInfo}.
+	 * 
+	 * @param other
+	 *            the {@link TypeInfo} to copy
+	 */
+	private TypeInfo(TypeInfo other) {
+		super(null);
+
+		name = other.name;
+		value = other.value;
+		unescapedValue = other.unescapedValue;
 	}
 
 	/**
@@ -39,7 +57,15 @@ public class TypeInfo extends BaseClass<TypeInfo> {
 	 * @return the value
 	 */
 	public String getValue() {
-		return unescape(value);
+		if (unescapedValue == null)
+			unescapedValue = unescape(value);
+
+		return unescapedValue;
+	}
+
+	@Override
+	public TypeInfo copy() {
+		return new TypeInfo(this);
 	}
 
 	/**
@@ -60,4 +86,10 @@ public class TypeInfo extends BaseClass<TypeInfo> {
 	public String getState() {
 		return ("" + name + value).replace(' ', '_');
 	}
+
+	@Override
+	void updateState(StateDigest digest) {
+		digest.update(name);
+		digest.update(value);
+	}
 }
@@ -10,10 +10,13 @@ import java.util.List;
 
 import be.nikiroo.jvcard.Card;
 import be.nikiroo.jvcard.Contact;
+import be.nikiroo.jvcard.ContactFormat;
 import be.nikiroo.jvcard.Data;
 import be.nikiroo.jvcard.TypeInfo;
 import be.nikiroo.jvcard.launcher.CardResult.MergeCallback;
 import be.nikiroo.jvcard.launcher.Optional.NotSupportedException;
+import be.nikiroo.jvcard.parsers.ContactReader;
+import be.nikiroo.jvcard.parsers.ContactWriter;
 import be.nikiroo.jvcard.parsers.Format;
 import be.nikiroo.jvcard.remote.Command;
 import be.nikiroo.jvcard.remote.SimpleSocket;
@@ -46,7 +49,7 @@ public class Main {
 	static private final int ERR_INTERNAL = 3;
 	static private TransBundle transService;
 
-	static private String defaultFn;
+	static private ContactFormat defaultFn;
 	static private boolean forceComputedFn;
 
 	enum Mode {
@@ -335,50 +338,41 @@ public class Main {
 		case LOAD_PHOTO: {
 			for (String file : files) {
 				try {
-					Card card = getCard(file, null).getCard();
-					for (Contact contact : card) {
-						String filename = contact.toString(format, "");
-						File f = new File(dir, filename);
-
-						if (f.exists()) {
-							System.out.println("Loading " + f);
+					if (isFileRemote(file)) {
+						Card card = getCard(file, null).getCard();
+						for (Contact contact : card) {
+							loadPhoto(contact, dir, format);
+						}
+						card.save();
+					} else {
+						// one contact at a time, the file is replaced when done
+						File input = new File(file);
+						Format cardFormat = getCardFormat(file);
+						ContactWriter writer = new ContactWriter(input,
+								cardFormat);
+						boolean done = false;
+						try {
+							ContactReader reader = new ContactReader(input,
+									cardFormat);
 							try {
-								String type = "jpeg";
-								int dotIndex = filename.indexOf('.');
-								if (dotIndex >= 0
-										&& (dotIndex + 1) < filename.length()) {
-									type = filename.substring(dotIndex + 1)
-											.toLowerCase();
-								}
-
-								String b64;
-								Image img = new Image(IOUtils.toByteArray(f));
-								try {
-									b64 = img.toBase64();
-								} finally {
-									img.close();
+								for (Contact contact = reader.read(); contact != null; contact = reader
+										.read()) {
+									fixFn(contact);
+									loadPhoto(contact, dir, format);
+									writer.write(contact);
 								}
-
-								// remove previous photos:
-								for (Data photo = contact
-										.getPreferredData("PHOTO"); photo != null; photo = contact
-										.getPreferredData("PHOTO")) {
-									photo.delete();
-								}
-								//
-
-								List<TypeInfo> types = new LinkedList<TypeInfo>();
-								types.add(new TypeInfo("ENCODING", "b"));
-								types.add(new TypeInfo("TYPE", type));
-								Data photo = new Data(types, "PHOTO", b64, null);
-								contact.add(photo);
-							} catch (IOException e) {
-								System.err.println("Cannot read photo: "
-										+ filename);
+							} finally {
+								reader.close();
+							}
+							done = true;
+						} finally {
+							if (done) {
+								writer.close();
+							} else {
+								writer.cancel();
 							}
 						}
 					}
-					card.save();
 				} catch (IOException e) {
 					System.err
 							.println(trans(StringId.CLI_ERR_CANNOT_OPEN, file));
@@ -389,22 +383,21 @@ public class Main {
 		case SAVE_PHOTO: {
 			for (String file : files) {
 				try {
-					Card card = getCard(file, null).getCard();
-					for (Contact contact : card) {
-						Data photo = contact.getPreferredData("PHOTO");
-						if (photo != null) {
-							String filename = contact.toString(format, "");
-							File f = new File(dir, filename + ".png");
-							System.out.println("Saving " + f);
-							Image img = new Image(photo.getValue());
-							try {
-								ImageUtils.getInstance().saveAsImage(img, f,
-										"png");
-							} catch (IOException e) {
-								System.err.println(trans(
-										StringId.CLI_ERR_CANNOT_SAVE_PHOTO,
-										contact.getPreferredDataValue("FN")));
+					if (isFileRemote(file)) {
+						for (Contact contact : getCard(file, null).getCard()) {
+							savePhoto(contact, dir, format);
+						}
+					} else {
+						ContactReader reader = new ContactReader(
+								new File(file), getCardFormat(file));
+						try {
+							for (Contact contact = reader.read(); contact != null; contact = reader
+									.read()) {
+								fixFn(contact);
+								savePhoto(contact, dir, format);
 							}
+						} finally {
+							reader.close();
 						}
 					}
 				} catch (IOException e) {
@@ -434,22 +427,54 @@ public class Main {
 		}
 		case SAVE_TO: {
 			try {
-				Card total = new Card(null, getCardFormat(output));
+				// one contact at a time, the output is replaced when done
+				ContactWriter writer = new ContactWriter(new File(output),
+						getCardFormat(output));
+				boolean written = false;
+				try {
+					for (String file : files) {
+						// an input we cannot read is skipped, but an error
+						// when writing stops everything
+						boolean writing = false;
+						try {
+							if (isFileRemote(file)) {
+								Card card = getCard(file, null).getCard();
+								writing = true;
+								for (Contact contact : card) {
+									writer.write(contact);
+								}
+							} else {
+								ContactReader reader = new ContactReader(
+										new File(file), getCardFormat(file));
+								try {
+									for (Contact contact = reader.read(); contact != null; contact = reader
+											.read()) {
+										fixFn(contact);
+										writing = true;
+										writer.write(contact);
+										writing = false;
+									}
+								} finally {
+									reader.close();
+								}
+							}
+						} catch (IOException e) {
+							if (writing)
+								throw e;
 
-				for (String file : files) {
-					try {
-						Card card = getCard(file, null).getCard();
-						card.unlink();
-						while (card.size() > 0) {
-							total.add(card.remove(0));
+							System.err.println(trans(
+									StringId.CLI_ERR_CANNOT_OPEN, file));
 						}
-					} catch (IOException e) {
-						System.err.println(trans(StringId.CLI_ERR_CANNOT_OPEN,
-								file));
 					}
-				}
 
-				total.saveAs(new File(output), getCardFormat(output));
+					written = true;
+				} finally {
+					// a partial output does not replace the old one
+					if (written)
+						writer.close();
+					else
+						writer.cancel();
+				}
 			} catch (IOException e) {
 				System.err.println(trans(StringId.CLI_ERR_CANNOT_OPEN, output));
 			}
@@ -547,13 +572,7 @@ public class Main {
 		if (defaultFn != null) {
 			try {
 				for (Contact contact : card.getCard()) {
-					Data name = contact.getPreferredData("FN");
-					Data n = contact.getPreferredData("N");
-					boolean hasN = n != null && n.getValue().length() > 0;
-					if (name == null || name.getValue().length() == 0
-							|| (forceComputedFn && hasN)) {
-						name.setValue(contact.toString(defaultFn, "").trim());
-					}
+					fixFn(contact);
 				}
 			} catch (Exception e) {
 				// sync failed -> getCard() throws.
@@ -564,6 +583,105 @@ public class Main {
 		return card;
 	}
 
+	/**
+	 * Fix the FN value of the given {@link Contact} if required (see
+	 * display.properties).
+	 * 
+	 * @param contact
+	 *            the {@link Contact} to fix
+	 */
+	static private void fixFn(Contact contact) {
+		if (defaultFn == null)
+			return;
+
+		Data name = contact.getPreferredData("FN");
+		Data n = contact.getPreferredData("N");
+		boolean hasN = n != null && n.getValue().length() > 0;
+		if (name != null
+				&& (name.getValue().length() == 0 || (forceComputedFn && hasN))) {
+			name.setValue(contact.toString(defaultFn, "").trim());
+		}
+	}
+
+	/**
+	 * Replace the photo of the given {@link Contact} by the one found in the
+	 * given directory, if any.
+	 * 
+	 * @param contact
+	 *            the {@link Contact}
+	 * @param dir
+	 *            the directory containing the photos
+	 * @param format
+	 *            the format of the photo file names (see
+	 *            {@link Contact#toString(String, String)})
+	 */
+	static private void loadPhoto(Contact contact, String dir, String format) {
+		String filename = contact.toString(format, "");
+		File f = new File(dir, filename);
+
+		if (f.exists()) {
+			System.out.println("Loading " + f);
+			try {
+				String type = "jpeg";
+				int dotIndex = filename.indexOf('.');
+				if (dotIndex >= 0 && (dotIndex + 1) < filename.length()) {
+					type = filename.substring(dotIndex + 1).toLowerCase();
+				}
+
+				String b64;
+				Image img = new Image(IOUtils.toByteArray(f));
+				try {
+					b64 = img.toBase64();
+				} finally {
+					img.close();
+				}
+
+				// remove previous photos:
+				for (Data photo = contact.getPreferredData("PHOTO"); photo != null; photo = contact
+						.getPreferredData("PHOTO")) {
+					photo.delete();
+				}
+				//
+
+				List<TypeInfo> types = new LinkedList<TypeInfo>();
+				types.add(new TypeInfo("ENCODING", "b"));
+				types.add(new TypeInfo("TYPE", type));
+				Data photo = new Data(types, "PHOTO", b64, null);
+				contact.add(photo);
+			} catch (IOException e) {
+				System.err.println("Cannot read photo: " + filename);
+			}
+		}
+	}
+
+	/**
+	 * Save the photo of the given {@link Contact}, if any, in the given
+	 * directory.
+	 * 
+	 * @param contact
+	 *            the {@link Contact}
+	 * @param dir
+	 *            the directory to save the photo in
+	 * @param format
+	 *            the format of the photo file names (see
+	 *            {@link Contact#toString(String, String)})
+	 */
+	static private void savePhoto(Contact contact, String dir, String format) {
+		Data photo = contact.getPreferredData("PHOTO");
+		if (photo != null && photo.isBinary()) {
+			String filename = contact.toString(format, "");
+			File f = new File(dir, filename + ".png");
+			System.out.println("Saving " + f);
+			try {
+				Image img = new Image(photo.getBlob().getBytes());
+				ImageUtils.getInstance().saveAsImage(img, f, "png");
+			} catch (IOException e) {
+				System.err.println(trans(StringId.CLI_ERR_CANNOT_SAVE_PHOTO,
+						contact.getPreferredDataValue("FN")));
+			}
+		}
+	}
+
 	static private boolean isFileRemote(String input) {
 		return input.contains("://");
 	}
@@ -680,7 +798,8 @@ public class Main {
 	static private void readNFN() {
 		DisplayBundle map = new DisplayBundle();
 
-		defaultFn = map.getString(DisplayOption.CONTACT_DETAILS_DEFAULT_FN);
+		String fn = map.getString(DisplayOption.CONTACT_DETAILS_DEFAULT_FN);
+		defaultFn = fn == null ? null : ContactFormat.compile(fn);
 
 		forceComputedFn = map.getBoolean(
 				DisplayOption.CONTACT_DETAILS_SHOW_COMPUTED_FN, false);
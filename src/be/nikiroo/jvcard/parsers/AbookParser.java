@@ -24,27 +24,79 @@ public class AbookParser {
 		List<Contact> contacts = new LinkedList<Contact>();
 
 		for (String line : lines) {
-			List<Data> content = new LinkedList<Data>();
-
-			String tab[] = line.split("\t");
-
-			if (tab.length >= 1)
-				content.add(new Data(null, "NICKNAME", tab[0].trim(), null));
-			if (tab.length >= 2)
-				content.add(new Data(null, "FN", tab[1].trim(), null));
-			if (tab.length >= 3)
-				content.add(new Data(null, "EMAIL", tab[2].trim(), null));
-			if (tab.length >= 4)
-				content.add(new Data(null, "X-FCC", tab[3].trim(), null));
-			if (tab.length >= 5)
-				content.add(new Data(null, "NOTE", tab[4].trim(), null));
-
-			contacts.add(new Contact(content));
+			contacts.add(parseContact(line));
 		}
 
 		return contacts;
 	}
 
+	/**
+	 * Load the data from the given {@link LineReader}, one line at a time.
+	 * 
+	 * @param lines
+	 *            the input to load from
+	 * 
+	 * @return the list of elements
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static List<Contact> parseContact(LineReader lines) throws IOException {
+		List<Contact> contacts = new LinkedList<Contact>();
+
+		for (Contact contact = readContact(lines); contact != null; contact = readContact(lines)) {
+			contacts.add(contact);
+		}
+
+		return contacts;
+	}
+
+	/**
+	 * Read the next {@link Contact} from the given {@link LineReader}.
+	 * 
+	 * @param lines
+	 *            the input to load from
+	 * 
+	 * @return the next {@link Contact}, or NULL if there are no more
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static Contact readContact(LineReader lines) throws IOException {
+		String line = lines.readLine();
+		if (line == null)
+			return null;
+
+		return parseContact(line);
+	}
+
+	/**
+	 * Load the {@link Contact} described by the given line.
+	 * 
+	 * @param line
+	 *            the line to load
+	 * 
+	 * @return the {@link Contact}
+	 */
+	static Contact parseContact(String line) {
+		List<Data> content = new LinkedList<Data>();
+
+		String tab[] = line.split("\t");
+
+		if (tab.length >= 1)
+			content.add(new Data(null, "NICKNAME", tab[0].trim(), null));
+		if (tab.length >= 2)
+			content.add(new Data(null, "FN", tab[1].trim(), null));
+		if (tab.length >= 3)
+			content.add(new Data(null, "EMAIL", tab[2].trim(), null));
+		if (tab.length >= 4)
+			content.add(new Data(null, "X-FCC", tab[3].trim(), null));
+		if (tab.length >= 5)
+			content.add(new Data(null, "NOTE", tab[4].trim(), null));
+
+		return new Contact(content);
+	}
+
 	/**
 	 * Return a {@link String} representation of the given {@link Card}, line by
 	 * line.
@@ -0,0 +1,174 @@
+package be.nikiroo.jvcard.parsers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.security.InvalidParameterException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import be.nikiroo.jvcard.Card;
+import be.nikiroo.jvcard.Contact;
+import be.nikiroo.jvcard.FileBlob;
+
+/**
+ * Read the {@link Contact}s of a file or a stream one at a time, without
+ * loading the whole {@link Card} in memory.
+ * <p>
+ * The {@link Contact}s are parsed while they are read: only the next one is
+ * kept in memory (the long binary values of a {@link File} even stay in it,
+ * see {@link FileBlob}).
+ * <p>
+ * Since an {@link Iterator} cannot throw an {@link IOException}, the I/O
+ * errors met by {@link ContactReader#hasNext()} and
+ * {@link ContactReader#next()} are thrown as {@link RuntimeException}s; use
+ * {@link ContactReader#read()} to get them as is.
+ * 
+ * @author niki
+ */
+public class ContactReader implements Iterator<Contact>, Closeable {
+	private Closeable in;
+	private LineReader lines;
+	private File source;
+	private Format format;
+
+	private Contact next;
+	private boolean eof;
+
+	/**
+	 * Create a new {@link ContactReader} on the given {@link File}.
+	 * 
+	 * @param file
+	 *            the input {@link File}
+	 * @param format
+	 *            the {@link Format} to read it as
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public ContactReader(File file, Format format) throws IOException {
+		this(new FileInputStream(file), format);
+		this.source = file;
+	}
+
+	/**
+	 * Create a new {@link ContactReader} on the given UTF-8
+	 * {@link InputStream}.
+	 * 
+	 * @param in
+	 *            the input (it will be closed with this {@link ContactReader})
+	 * @param format
+	 *            the {@link Format} to read it as
+	 * 
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public ContactReader(InputStream in, Format format) {
+		this(in, new LineReader(in), format);
+	}
+
+	/**
+	 * Create a new {@link ContactReader} on the given {@link Reader}.
+	 * 
+	 * @param in
+	 *            the input (it will be closed with this {@link ContactReader})
+	 * @param format
+	 *            the {@link Format} to read it as
+	 * 
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public ContactReader(Reader in, Format format) {
+		this(in, new LineReader(in), format);
+	}
+
+	/**
+	 * Create a new {@link ContactReader}.
+	 * 
+	 * @param in
+	 *            the input to close with this {@link ContactReader}
+	 * @param lines
+	 *            the {@link LineReader} on this input
+	 * @param format
+	 *            the {@link Format} to read it as
+	 * 
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	private ContactReader(Closeable in, LineReader lines, Format format) {
+		if (format == null)
+			throw new InvalidParameterException("The format cannot be NULL");
+
+		this.in = in;
+		this.lines = lines;
+		this.format = format;
+	}
+
+	/**
+	 * Read the next {@link Contact}.
+	 * 
+	 * @return the next {@link Contact}, or NULL if there are no more
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public Contact read() throws IOException {
+		if (next != null) {
+			Contact contact = next;
+			next = null;
+			return contact;
+		}
+
+		if (eof)
+			return null;
+
+		Contact contact = Parser.readContact(lines, source, format);
+		if (contact == null)
+			eof = true;
+
+		return contact;
+	}
+
+	public boolean hasNext() {
+		if (next == null && !eof) {
+			try {
+				next = read();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		return next != null;
+	}
+
+	public Contact next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		Contact contact = next;
+		next = null;
+		return contact;
+	}
+
+	/**
+	 * Not supported: the {@link Contact}s are read, not removed from the
+	 * input.
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Close the input.
+	 */
+	public void close() throws IOException {
+		eof = true;
+		next = null;
+		in.close();
+	}
+}
@@ -0,0 +1,199 @@
+package be.nikiroo.jvcard.parsers;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidParameterException;
+
+import be.nikiroo.jvcard.Card;
+import be.nikiroo.jvcard.Contact;
+import be.nikiroo.jvcard.FileBlob;
+
+/**
+ * Write {@link Contact}s one at a time in a file or a stream, without
+ * building a {@link Card} first.
+ * <p>
+ * When writing to a {@link File}, the {@link Contact}s are first written to a
+ * temporary {@link File} which only replaces the real one when this
+ * {@link ContactWriter} is closed, so the {@link File} can also be read
+ * while it is written (for instance, by a {@link ContactReader}).
+ * 
+ * @author niki
+ */
+public class ContactWriter implements Closeable, Flushable {
+	private Appendable out;
+	private Format format;
+
+	private File file;
+	private File target;
+	private boolean failed;
+
+	/**
+	 * Create a new {@link ContactWriter} to the given {@link File}, which
+	 * will be replaced (in UTF-8) when this {@link ContactWriter} is closed.
+	 * 
+	 * @param file
+	 *            the output {@link File}
+	 * @param format
+	 *            the {@link Format} to write to
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public ContactWriter(File file, Format format) throws IOException {
+		this((Appendable) null, format);
+
+		this.file = file;
+		this.target = File.createTempFile(".jvcard", ".tmp", file
+				.getCanonicalFile().getParentFile());
+		this.out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(target), "UTF-8"));
+	}
+
+	/**
+	 * Create a new {@link ContactWriter} to the given {@link OutputStream}, in
+	 * UTF-8.
+	 * 
+	 * @param out
+	 *            the output (it will be closed with this
+	 *            {@link ContactWriter})
+	 * @param format
+	 *            the {@link Format} to write to
+	 * 
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public ContactWriter(OutputStream out, Format format) {
+		this(utf8(out), format);
+	}
+
+	/**
+	 * Create a new {@link ContactWriter} to the given {@link Appendable}.
+	 * 
+	 * @param out
+	 *            the output (it will be closed with this {@link ContactWriter}
+	 *            if it is {@link Closeable})
+	 * @param format
+	 *            the {@link Format} to write to
+	 * 
+	 * @throws InvalidParameterException
+	 *             if format is NULL
+	 */
+	public ContactWriter(Appendable out, Format format) {
+		if (format == null)
+			throw new InvalidParameterException("The format cannot be NULL");
+
+		this.out = out;
+		this.format = format;
+	}
+
+	/**
+	 * Write the given {@link Contact}.
+	 * 
+	 * @param contact
+	 *            the {@link Contact} to write
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public void write(Contact contact) throws IOException {
+		boolean written = false;
+		try {
+			Parser.write(out, contact, format, -1);
+			written = true;
+		} finally {
+			if (!written)
+				failed = true;
+		}
+	}
+
+	public void flush() throws IOException {
+		if (out instanceof Flushable)
+			((Flushable) out).flush();
+	}
+
+	/**
+	 * Close the output.
+	 * <p>
+	 * When writing to a {@link File}, it is now replaced by what was written.
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error, or if a {@link Contact} could not be
+	 *             written or some values could not be read from the
+	 *             {@link File} before it is replaced (see {@link FileBlob}; the
+	 *             {@link File} is then left as it was)
+	 */
+	public void close() throws IOException {
+		if (failed) {
+			cancel();
+			throw new IOException("Some contacts could not be written to "
+					+ (file == null ? "the output" : file));
+		}
+
+		if (out instanceof Closeable)
+			((Closeable) out).close();
+
+		if (target == null)
+			return;
+
+		// the values still left in the file we replace must be read first
+		try {
+			FileBlob.detach(file.getCanonicalFile(), null);
+		} catch (IOException e) {
+			cancel();
+			throw e;
+		}
+
+		File tmp = target;
+		target = null;
+
+		// some systems cannot rename onto an existing file
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+			throw new IOException("Cannot replace " + file + " with " + tmp);
+		}
+	}
+
+	/**
+	 * Close the output, but leave the {@link File} we were writing to as it
+	 * was (nothing is undone when writing to a stream).
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public void cancel() throws IOException {
+		try {
+			if (out instanceof Closeable)
+				((Closeable) out).close();
+		} finally {
+			if (target != null) {
+				target.delete();
+				target = null;
+			}
+		}
+	}
+
+	/**
+	 * Create an UTF-8 {@link Appendable} on the given {@link OutputStream}.
+	 * 
+	 * @param out
+	 *            the {@link OutputStream}
+	 * 
+	 * @return the {@link Appendable}
+	 */
+	static private Appendable utf8(OutputStream out) {
+		try {
+			return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new RuntimeException(e);
+		}
+	}
+}
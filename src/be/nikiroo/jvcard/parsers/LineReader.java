@@ -0,0 +1,349 @@
+package be.nikiroo.jvcard.parsers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * A simple line reader which can also tell where each line was found in its
+ * input, in bytes (the input is read as UTF-8).
+ * <p>
+ * The lines can end with "\n", "\r\n" or "\r", like with
+ * {@link java.io.BufferedReader#readLine()}.
+ * <p>
+ * When reading from a {@link ByteBuffer} (for instance, a memory-mapped
+ * file), the lines are read directly from it, and the continuation lines
+ * which are skipped are not even decoded (see
+ * {@link LineReader#skipContinuation()}).
+ * 
+ * @author niki
+ */
+class LineReader {
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	private InputStream in;
+	private ByteBuffer bytes;
+	private BufferedReader reader;
+	private Iterator<String> lines;
+
+	private byte[] buffer = new byte[8192];
+	private int pos;
+	private int len;
+	private long offset; // offset of buffer[0] (or bytes[0]) in the input
+
+	private byte[] line = new byte[256];
+	private long start = -1;
+	private long end = -1;
+
+	private String last;
+	private boolean unread;
+
+	/**
+	 * Create a new {@link LineReader} on the given input, which will be read
+	 * as UTF-8.
+	 * 
+	 * @param in
+	 *            the input (it will not be closed)
+	 */
+	public LineReader(InputStream in) {
+		this(in, 0);
+	}
+
+	/**
+	 * Create a new {@link LineReader} on the given input, which will be read
+	 * as UTF-8.
+	 * 
+	 * @param in
+	 *            the input (it will not be closed)
+	 * @param offset
+	 *            the position of the input in its source (for instance, if it
+	 *            only reads a part of a file), which will be added to the
+	 *            positions of the lines
+	 */
+	public LineReader(InputStream in, long offset) {
+		this.in = in;
+		this.offset = offset;
+	}
+
+	/**
+	 * Create a new {@link LineReader} on the remaining bytes of the given
+	 * {@link ByteBuffer}, which will be read as UTF-8.
+	 * 
+	 * @param bytes
+	 *            the input (its position will not change)
+	 * @param offset
+	 *            the position of its first remaining byte in its source (for
+	 *            instance, in the file it maps), which will be added to the
+	 *            positions of the lines
+	 */
+	public LineReader(ByteBuffer bytes, long offset) {
+		this.bytes = bytes.slice();
+		this.offset = offset;
+	}
+
+	/**
+	 * Create a new {@link LineReader} on the given input; the positions of the
+	 * lines will not be known.
+	 * 
+	 * @param in
+	 *            the input (it will not be closed)
+	 */
+	public LineReader(Reader in) {
+		if (in instanceof BufferedReader) {
+			this.reader = (BufferedReader) in;
+		} else {
+			this.reader = new BufferedReader(in);
+		}
+	}
+
+	/**
+	 * Create a new {@link LineReader} on the given lines; the positions of
+	 * the lines will not be known.
+	 * 
+	 * @param lines
+	 *            the lines
+	 */
+	public LineReader(Iterator<String> lines) {
+		this.lines = lines;
+	}
+
+	/**
+	 * Read the next line.
+	 * 
+	 * @return the line, without its end of line, or NULL at the end of the
+	 *         input
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public String readLine() throws IOException {
+		if (unread) {
+			unread = false;
+			return last;
+		}
+
+		last = nextLine();
+		return last;
+	}
+
+	/**
+	 * Push the last line read back, so it is returned (with the same
+	 * positions) by the next call to {@link LineReader#readLine()}.
+	 */
+	public void unread() {
+		unread = true;
+	}
+
+	/**
+	 * Skip the next line if it is a continuation line (a line starting with a
+	 * space or a tab), without decoding it.
+	 * <p>
+	 * The positions are then the positions of the skipped line, but it cannot
+	 * be pushed back with {@link LineReader#unread()}.
+	 * 
+	 * @return TRUE if a line was skipped
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public boolean skipContinuation() throws IOException {
+		if (unread || lines != null || reader != null) {
+			String line = readLine();
+			if (line != null && line.length() > 0
+					&& (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+				return true;
+			}
+
+			unread();
+			return false;
+		}
+
+		int b = peek();
+		if (b != ' ' && b != '\t')
+			return false;
+
+		scanLine(false);
+		last = null;
+		return true;
+	}
+
+	/**
+	 * Return the position in the input of the first byte of the last line
+	 * read.
+	 * 
+	 * @return the position, or -1 if unknown
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Return the position in the input just after the last byte of the last
+	 * line read (its end of line not included).
+	 * 
+	 * @return the position, or -1 if unknown
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Read the next line from the input.
+	 * 
+	 * @return the line, without its end of line, or NULL at the end of the
+	 *         input
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	private String nextLine() throws IOException {
+		if (lines != null) {
+			return lines.hasNext() ? lines.next() : null;
+		}
+
+		if (reader != null) {
+			return reader.readLine();
+		}
+
+		if (peek() < 0)
+			return null;
+
+		int size = scanLine(true);
+		return new String(line, 0, size, UTF8);
+	}
+
+	/**
+	 * Return the next byte of the input, without reading it (only for the
+	 * {@link InputStream} and {@link ByteBuffer} inputs).
+	 * 
+	 * @return the next byte, or -1 at the end of the input
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	private int peek() throws IOException {
+		if (bytes != null) {
+			if (!bytes.hasRemaining())
+				return -1;
+			return bytes.get(bytes.position());
+		}
+
+		if (pos >= len && !fill())
+			return -1;
+		return buffer[pos];
+	}
+
+	/**
+	 * Read the next line, which must exist, and update its positions (only
+	 * for the {@link InputStream} and {@link ByteBuffer} inputs).
+	 * 
+	 * @param keep
+	 *            TRUE to keep its bytes in <tt>line</tt>, FALSE to only skip
+	 *            it
+	 * 
+	 * @return the size of the line in bytes, without its end of line
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	private int scanLine(boolean keep) throws IOException {
+		int size = 0;
+		int eol = -1;
+
+		if (bytes != null) {
+			int from = bytes.position();
+			int index = from;
+			int limit = bytes.limit();
+			while (index < limit && eol < 0) {
+				byte b = bytes.get(index++);
+				if (b == '\n' || b == '\r') {
+					eol = b;
+				} else {
+					size++;
+				}
+			}
+
+			if (keep) {
+				ensureLine(size);
+				bytes.get(line, 0, size);
+			}
+
+			// "\r\n" is only one end of line
+			if (eol == '\r' && index < limit && bytes.get(index) == '\n')
+				index++;
+
+			bytes.position(index);
+			start = offset + from;
+			end = start + size;
+			return size;
+		}
+
+		start = offset + pos;
+		while (eol < 0) {
+			if (pos >= len && !fill())
+				break;
+
+			byte b = buffer[pos++];
+			if (b == '\n' || b == '\r') {
+				eol = b;
+			} else {
+				if (keep) {
+					ensureLine(size + 1);
+					line[size] = b;
+				}
+				size++;
+			}
+		}
+
+		// "\r\n" is only one end of line
+		if (eol == '\r' && (pos < len || fill()) && buffer[pos] == '\n')
+			pos++;
+
+		end = start + size;
+		return size;
+	}
+
+	/**
+	 * Make sure <tt>line</tt> can hold the given number of bytes (its content
+	 * is kept).
+	 * 
+	 * @param size
+	 *            the number of bytes
+	 */
+	private void ensureLine(int size) {
+		if (size > line.length) {
+			byte[] newLine = new byte[Math.max(size, line.length * 2)];
+			System.arraycopy(line, 0, newLine, 0, line.length);
+			line = newLine;
+		}
+	}
+
+	/**
+	 * Read more data into the buffer.
+	 * 
+	 * @return FALSE if the end of the input was reached
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	private boolean fill() throws IOException {
+		offset += len;
+		pos = 0;
+		len = 0;
+
+		int read = in.read(buffer);
+		while (read == 0) {
+			read = in.read(buffer);
+		}
+
+		if (read < 0)
+			return false;
+
+		len = read;
+		return true;
+	}
+}
@@ -0,0 +1,315 @@
+package be.nikiroo.jvcard.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import be.nikiroo.jvcard.Contact;
+
+/**
+ * Parse a large VCard21 file on several threads: the file is cut in chunks
+ * starting on a <tt>BEGIN:VCARD</tt> line, which are parsed in parallel
+ * (see {@link Vcard21Parser#parseContact(LineReader, File)}) and joined back
+ * in order.
+ * <p>
+ * The chunks are read from the same memory mapping of the file, or with
+ * positional reads on the same {@link FileChannel} if it is not mapped.
+ * 
+ * @author niki
+ */
+class ParallelParser {
+	/** The chunks will not be smaller than that (in bytes) */
+	static private final long MIN_CHUNK = 1024 * 1024;
+	/** The number of chunks to try to give to each thread */
+	static private final int CHUNKS_PER_THREAD = 4;
+
+	static private ForkJoinPool pool;
+
+	/**
+	 * Load the data from the given VCard21 {@link File}, in parallel.
+	 * <p>
+	 * The long binary values are left in the {@link File} (see
+	 * {@link be.nikiroo.jvcard.FileBlob}).
+	 * 
+	 * @param file
+	 *            the input to load from
+	 * @param map
+	 *            TRUE to map the {@link File} in memory (it must not be bigger
+	 *            than 2 GB)
+	 * 
+	 * @return the list of elements, in the order of the {@link File}
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static public List<Contact> parseContact(File file, boolean map)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = map ? Parser.map(file) : null;
+			ForkJoinPool pool = getPool();
+
+			long chunk = Math.max(MIN_CHUNK, channel.size()
+					/ (pool.getParallelism() * CHUNKS_PER_THREAD));
+			ChunkTask task = new ChunkTask(file, buffer, channel, 0,
+					channel.size(), chunk);
+
+			try {
+				return pool.invoke(task);
+			} catch (ParseException e) {
+				throw e.getCause();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Return the {@link ForkJoinPool} shared by all the parsers (its threads
+	 * are daemons and only started when needed).
+	 * 
+	 * @return the {@link ForkJoinPool}
+	 */
+	static synchronized private ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+
+		return pool;
+	}
+
+	/**
+	 * Create a {@link LineReader} on the given part of the file.
+	 * 
+	 * @param buffer
+	 *            the mapping of the file, or NULL if it is not mapped
+	 * @param channel
+	 *            the file
+	 * @param start
+	 *            the start of the part
+	 * @param end
+	 *            the end of the part (excluded)
+	 * 
+	 * @return the {@link LineReader}
+	 */
+	static private LineReader open(ByteBuffer buffer, FileChannel channel,
+			long start, long end) {
+		if (buffer != null) {
+			ByteBuffer part = buffer.duplicate();
+			part.limit((int) end);
+			part.position((int) start);
+			return new LineReader(part, start);
+		}
+
+		return new LineReader(new ChannelInputStream(channel, start, end),
+				start);
+	}
+
+	/**
+	 * Find the first record starting in the given part of the file, that is,
+	 * the first <tt>BEGIN:VCARD</tt> line (not folded) starting at or after
+	 * <tt>from</tt> and before <tt>to</tt>.
+	 * 
+	 * @param buffer
+	 *            the mapping of the file, or NULL if it is not mapped
+	 * @param channel
+	 *            the file
+	 * @param from
+	 *            the first possible position, which must be after the start
+	 *            of the file
+	 * @param to
+	 *            the end of the part of the file (excluded)
+	 * 
+	 * @return the position of the <tt>BEGIN:VCARD</tt> line, or -1 if none
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static private long findRecord(ByteBuffer buffer, FileChannel channel,
+			long from, long to) throws IOException {
+		// we start on the byte before, so the first (partial) line we skip
+		// ends just before the first line starting at or after "from"
+		LineReader lines = open(buffer, channel, from - 1, to);
+		lines.readLine();
+
+		String line = lines.readLine();
+		while (line != null) {
+			long start = lines.getStart();
+			boolean begin = line.startsWith("BEGIN:VCARD")
+					&& line.trim().equals("BEGIN:VCARD");
+
+			line = lines.readLine();
+			if (begin && (line == null || !isContinuation(line)))
+				return start;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Check if the given line is a continuation line or not.
+	 * 
+	 * @param line
+	 *            the line to check
+	 * 
+	 * @return TRUE if the line is a continuation line
+	 */
+	static private boolean isContinuation(String line) {
+		return line.length() > 0
+				&& (line.charAt(0) == ' ' || line.charAt(0) == '\t');
+	}
+
+	/**
+	 * Parse a part of the file, or fork to parse its two halves if it is too
+	 * big.
+	 * 
+	 * @author niki
+	 */
+	static private class ChunkTask extends RecursiveTask<List<Contact>> {
+		private static final long serialVersionUID = 1L;
+
+		private File file;
+		private ByteBuffer buffer;
+		private FileChannel channel;
+		private long start;
+		private long end;
+		private long chunk;
+
+		/**
+		 * Create a new {@link ChunkTask}.
+		 * 
+		 * @param file
+		 *            the {@link File} to parse
+		 * @param buffer
+		 *            the mapping to read it from, or NULL if it is not mapped
+		 * @param channel
+		 *            the {@link FileChannel} to read it with
+		 * @param start
+		 *            the start of the part to parse, which is the start of a
+		 *            record (or of the file)
+		 * @param end
+		 *            the end of the part to parse (excluded), which is the
+		 *            start of a record (or the end of the file)
+		 * @param chunk
+		 *            the size under which the part will not be split
+		 */
+		public ChunkTask(File file, ByteBuffer buffer, FileChannel channel,
+				long start, long end, long chunk) {
+			this.file = file;
+			this.buffer = buffer;
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.chunk = chunk;
+		}
+
+		@Override
+		protected List<Contact> compute() {
+			try {
+				long middle = -1;
+				if (end - start > chunk) {
+					middle = findRecord(buffer, channel, start + (end - start)
+							/ 2, end);
+				}
+
+				if (middle < 0) {
+					return Vcard21Parser.parseContact(
+							open(buffer, channel, start, end), file);
+				}
+
+				ChunkTask first = new ChunkTask(file, buffer, channel, start,
+						middle, chunk);
+				ChunkTask second = new ChunkTask(file, buffer, channel, middle,
+						end, chunk);
+
+				first.fork();
+				List<Contact> secondContacts = second.compute();
+				List<Contact> contacts = first.join();
+
+				if (!(contacts instanceof ArrayList)) {
+					contacts = new ArrayList<Contact>(contacts);
+				}
+				contacts.addAll(secondContacts);
+
+				return contacts;
+			} catch (IOException e) {
+				throw new ParseException(e);
+			}
+		}
+	}
+
+	/**
+	 * An {@link InputStream} on a part of a {@link FileChannel}, which can be
+	 * used at the same time as other ones on the same {@link FileChannel}.
+	 * 
+	 * @author niki
+	 */
+	static private class ChannelInputStream extends InputStream {
+		private FileChannel channel;
+		private long position;
+		private long end;
+
+		/**
+		 * Create a new {@link ChannelInputStream}.
+		 * 
+		 * @param channel
+		 *            the {@link FileChannel} to read
+		 * @param start
+		 *            the position to start at
+		 * @param end
+		 *            the position to stop at (excluded)
+		 */
+		public ChannelInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			if (read(b, 0, 1) < 0)
+				return -1;
+
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end)
+				return -1;
+
+			len = (int) Math.min(len, end - position);
+			int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (read > 0)
+				position += read;
+
+			return read;
+		}
+	}
+
+	/**
+	 * An {@link IOException} met while parsing in a {@link ChunkTask}.
+	 * 
+	 * @author niki
+	 */
+	static private class ParseException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public ParseException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -1,10 +1,14 @@
 package be.nikiroo.jvcard.parsers;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.security.InvalidParameterException;
 import java.util.LinkedList;
 import java.util.List;
@@ -12,11 +16,74 @@ import java.util.List;
 import be.nikiroo.jvcard.Card;
 import be.nikiroo.jvcard.Contact;
 import be.nikiroo.jvcard.Data;
+import be.nikiroo.jvcard.FileBlob;
 
 public class Parser {
+	/**
+	 * The VCard21 files at least that big (in bytes) are parsed on several
+	 * threads (see {@link Parser#setParallelThreshold(long)})
+	 */
+	static private long parallelThreshold = 8 * 1024 * 1024;
+	/**
+	 * The files at least that big (in bytes) are memory-mapped (see
+	 * {@link Parser#setMapThreshold(long)})
+	 */
+	static private long mapThreshold = isMsWindows() ? Long.MAX_VALUE
+			: 1024 * 1024;
+
+	/**
+	 * Return the size from which the VCard21 files are parsed on several
+	 * threads.
+	 * 
+	 * @return the size in bytes, 8 MB by default
+	 */
+	static public long getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * Change the size from which the VCard21 files are parsed on several
+	 * threads (the smaller files are parsed on the calling thread).
+	 * 
+	 * @param threshold
+	 *            the size in bytes, or {@link Long#MAX_VALUE} to never parse
+	 *            them on several threads
+	 */
+	static public void setParallelThreshold(long threshold) {
+		parallelThreshold = threshold;
+	}
+
+	/**
+	 * Return the size from which the files are memory-mapped instead of read.
+	 * 
+	 * @return the size in bytes, 1 MB by default (but never on MS Windows)
+	 */
+	static public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * Change the size from which the files are memory-mapped instead of read
+	 * (the files bigger than 2 GB are never mapped).
+	 * <p>
+	 * Note that on some systems (MS Windows), a file cannot be replaced while
+	 * it is mapped, which lasts until the mapping is garbage collected.
+	 * 
+	 * @param threshold
+	 *            the size in bytes, or {@link Long#MAX_VALUE} to never map
+	 *            them
+	 */
+	static public void setMapThreshold(long threshold) {
+		mapThreshold = threshold;
+	}
 
 	/**
 	 * Load the data from the given {@link File} under the given {@link Format}.
+	 * <p>
+	 * The {@link File} is parsed while it is read (on several threads if it is
+	 * big enough, see {@link Parser#setParallelThreshold(long)}, and from
+	 * memory if it is mapped, see {@link Parser#setMapThreshold(long)}), and
+	 * the long binary values will stay in it until needed.
 	 * 
 	 * @param file
 	 *            the input to load from
@@ -30,23 +97,142 @@ public class Parser {
 	 */
 	public static List<Contact> parseContact(File file, Format format)
 			throws IOException {
-		List<String> lines = null;
-
-		if (file != null && file.exists()) {
-			BufferedReader buffer = new BufferedReader(new InputStreamReader(
-					new FileInputStream(file), "UTF-8"));
-			lines = new LinkedList<String>();
-			for (String line = buffer.readLine(); line != null; line = buffer
-					.readLine()) {
-				lines.add(line);
-			}
-			buffer.close();
+		if (file == null || !file.exists())
+			return new LinkedList<Contact>();
+
+		long size = file.length();
+		boolean map = size >= mapThreshold && size <= Integer.MAX_VALUE;
+
+		if (format == Format.VCard21 && size >= parallelThreshold)
+			return ParallelParser.parseContact(file, map);
+
+		if (map)
+			return parseContact(new LineReader(map(file), 0), file, format);
+
+		InputStream in = new FileInputStream(file);
+		try {
+			return parseContact(new LineReader(in), file, format);
+		} finally {
+			in.close();
 		}
+	}
 
-		if (lines == null)
-			return new LinkedList<Contact>();
+	/**
+	 * Load the data from the given UTF-8 {@link InputStream} under the given
+	 * {@link Format}, while it is read.
+	 * 
+	 * @param in
+	 *            the input to load from (it will not be closed)
+	 * @param format
+	 *            the {@link Format} to load as
+	 * 
+	 * @return the list of elements
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 */
+	public static List<Contact> parseContact(InputStream in, Format format)
+			throws IOException {
+		return parseContact(new LineReader(in), null, format);
+	}
+
+	/**
+	 * Load the data from the given UTF-8 bytes (for instance, a memory-mapped
+	 * file) under the given {@link Format}.
+	 * 
+	 * @param in
+	 *            the input to load from (from its position to its limit,
+	 *            which will not change)
+	 * @param format
+	 *            the {@link Format} to load as
+	 * 
+	 * @return the list of elements
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 */
+	public static List<Contact> parseContact(ByteBuffer in, Format format)
+			throws IOException {
+		return parseContact(new LineReader(in, 0), null, format);
+	}
+
+	/**
+	 * Load the data from the given {@link Reader} under the given
+	 * {@link Format}, while it is read.
+	 * 
+	 * @param in
+	 *            the input to load from (it will not be closed)
+	 * @param format
+	 *            the {@link Format} to load as
+	 * 
+	 * @return the list of elements
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 */
+	public static List<Contact> parseContact(Reader in, Format format)
+			throws IOException {
+		return parseContact(new LineReader(in), null, format);
+	}
 
-		return parseContact(lines, format);
+	/**
+	 * Load the data from the given {@link LineReader} under the given
+	 * {@link Format}.
+	 * 
+	 * @param lines
+	 *            the input to load from
+	 * @param source
+	 *            the {@link File} read by the {@link LineReader}, or NULL
+	 * @param format
+	 *            the {@link Format} to load as
+	 * 
+	 * @return the list of elements
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 */
+	static List<Contact> parseContact(LineReader lines, File source,
+			Format format) throws IOException {
+		switch (format) {
+		case VCard21:
+			return Vcard21Parser.parseContact(lines, source);
+		case Abook:
+			return AbookParser.parseContact(lines);
+
+		default:
+			throw new InvalidParameterException("Unknown format: "
+					+ format.toString());
+		}
+	}
+
+	/**
+	 * Read the next {@link Contact} from the given {@link LineReader} under
+	 * the given {@link Format}.
+	 * 
+	 * @param lines
+	 *            the input to load from
+	 * @param source
+	 *            the {@link File} read by the {@link LineReader}, or NULL
+	 * @param format
+	 *            the {@link Format} to load as
+	 * 
+	 * @return the next {@link Contact}, or NULL if there are no more
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 */
+	static Contact readContact(LineReader lines, File source, Format format)
+			throws IOException {
+		switch (format) {
+		case VCard21:
+			return Vcard21Parser.readContact(lines, source);
+		case Abook:
+			return AbookParser.readContact(lines);
+
+		default:
+			throw new InvalidParameterException("Unknown format: "
+					+ format.toString());
+		}
 	}
 
 	/**
@@ -72,6 +258,38 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * Map the given {@link File} in memory.
+	 * 
+	 * @param file
+	 *            the {@link File}, which must not be bigger than 2 GB
+	 * 
+	 * @return the read-only mapping of the whole {@link File}
+	 * 
+	 * @throws IOException
+	 *             in case of IO error
+	 */
+	static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			// the mapping stays valid when the channel is closed
+			return channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Check if we run on MS Windows.
+	 * 
+	 * @return TRUE if we do
+	 */
+	static private boolean isMsWindows() {
+		return System.getProperty("os.name", "").toLowerCase()
+				.startsWith("windows");
+	}
+
 	/**
 	 * Write the given {@link Card} in the {@link Appendable}.
 	 * 
@@ -133,6 +351,10 @@ public class Parser {
 
 	// return -1 if no bkey
 	public static int getBKey(Data data) {
+		// a value left in its file is never a (short) bkey, do not read it
+		if (data.getBlob() instanceof FileBlob)
+			return -1;
+
 		if (data.isBinary() && data.getValue().startsWith("<HIDDEN_")) {
 			try {
 				int bkey = Integer.parseInt(data.getValue()
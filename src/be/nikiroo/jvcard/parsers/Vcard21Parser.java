@@ -1,18 +1,27 @@
 package be.nikiroo.jvcard.parsers;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import be.nikiroo.jvcard.Blob;
 import be.nikiroo.jvcard.Card;
 import be.nikiroo.jvcard.Contact;
 import be.nikiroo.jvcard.Data;
+import be.nikiroo.jvcard.FileBlob;
 import be.nikiroo.jvcard.TypeInfo;
 
 public class Vcard21Parser {
+	/**
+	 * Binary values longer than that (in bytes) are left in their file until
+	 * needed (see {@link FileBlob})
+	 */
+	static private final int LAZY_MIN = 1024;
+
 	/**
 	 * Load the given data from under the given {@link Format}.
 	 * 
@@ -24,46 +33,131 @@ public class Vcard21Parser {
 	 * @return the list of elements
 	 */
 	public static List<Contact> parseContact(Iterable<String> textData) {
-		Iterator<String> lines = textData.iterator();
+		try {
+			return parseContact(new LineReader(textData.iterator()), null);
+		} catch (IOException e) {
+			// cannot happen, there is no I/O with an Iterator
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Load the data from the given {@link LineReader}.
+	 * <p>
+	 * If the source {@link File} is given, the long binary values are not
+	 * loaded but left in the {@link File} (see {@link FileBlob}).
+	 * 
+	 * @param lines
+	 *            the input to load from
+	 * @param source
+	 *            the {@link File} read by the {@link LineReader}, or NULL
+	 * 
+	 * @return the list of elements
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static List<Contact> parseContact(LineReader lines, File source)
+			throws IOException {
 		List<Contact> contacts = new LinkedList<Contact>();
-		List<String> datas = null;
-
-		String nextRawLine = null;
-		if (lines.hasNext()) {
-			nextRawLine = lines.next();
-			while (lines.hasNext() && isContinuation(nextRawLine)) {
-				// BAD INPUT FILE. IGNORE.
-				System.err
-						.println("VCARD Parser warning: CONTINUATION line seen before any data line");
-				nextRawLine = lines.next();
-			}
+		for (Contact contact = readContact(lines, source); contact != null; contact = readContact(
+				lines, source)) {
+			contacts.add(contact);
+		}
+
+		return contacts;
+	}
+
+	/**
+	 * Read the next {@link Contact} from the given {@link LineReader}.
+	 * <p>
+	 * If the source {@link File} is given, the long binary values are not
+	 * loaded but left in the {@link File} (see {@link FileBlob}).
+	 * 
+	 * @param lines
+	 *            the input to load from
+	 * @param source
+	 *            the {@link File} read by the {@link LineReader}, or NULL
+	 * 
+	 * @return the next {@link Contact}, or NULL if there are no more
+	 * 
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static Contact readContact(LineReader lines, File source)
+			throws IOException {
+		List<Data> datas = null;
+
+		String nextRawLine = lines.readLine();
+		while (nextRawLine != null && isContinuation(nextRawLine)) {
+			// BAD INPUT FILE. IGNORE.
+			System.err
+					.println("VCARD Parser warning: CONTINUATION line seen before any data line");
+			nextRawLine = lines.readLine();
 		}
 
 		while (nextRawLine != null) {
+			String firstLine = nextRawLine;
 			StringBuilder rawLine = new StringBuilder(nextRawLine.trim());
-			if (lines.hasNext())
-				nextRawLine = lines.next();
-			else
-				nextRawLine = null;
 
+			// position of the value in the source, if it can be left there
+			int valueIndex = -1;
+			long valueStart = -1;
+			long valueEnd = -1;
+			if (source != null && datas != null) {
+				valueIndex = getBinaryValueIndex(firstLine);
+				if (valueIndex >= 0) {
+					valueStart = lines.getStart()
+							+ firstLine.substring(0, valueIndex).getBytes(
+									"UTF-8").length;
+					valueEnd = lines.getEnd();
+					if (valueEnd - valueStart > LAZY_MIN)
+						rawLine = null; // we will not need it
+				}
+			}
+
+			nextRawLine = lines.readLine();
 			while (isContinuation(nextRawLine)) {
-				rawLine.append(nextRawLine.trim());
-				if (lines.hasNext())
-					nextRawLine = lines.next();
-				else
-					nextRawLine = null;
+				if (valueIndex >= 0) {
+					valueEnd = lines.getEnd();
+					if (valueEnd - valueStart > LAZY_MIN)
+						rawLine = null; // we will not need it
+				}
+
+				if (rawLine != null) {
+					rawLine.append(nextRawLine.trim());
+				} else {
+					// the value stays in the file, no need to decode the rest
+					while (lines.skipContinuation())
+						valueEnd = lines.getEnd();
+				}
+
+				nextRawLine = lines.readLine();
+			}
+
+			Blob blob = null;
+			String line;
+			if (rawLine == null) {
+				blob = new FileBlob(source, valueStart, valueEnd - valueStart,
+						firstLine.substring(valueIndex));
+				line = firstLine.substring(0, valueIndex);
+			} else {
+				line = rawLine.toString();
 			}
 
-			String line = rawLine.toString();
 			if (line.equals("BEGIN:VCARD")) {
-				datas = new LinkedList<String>();
+				datas = new LinkedList<Data>();
 			} else if (line.equals("END:VCARD")) {
 				if (datas == null) {
 					// BAD INPUT FILE. IGNORE.
 					System.err
 							.println("VCARD Parser warning: END:VCARD seen before any VCARD:BEGIN");
 				} else {
-					contacts.add(new Contact(parseData(datas)));
+					// the next line belongs to the next contact
+					if (nextRawLine != null)
+						lines.unread();
+
+					return new Contact(datas);
 				}
 			} else {
 				if (datas == null) {
@@ -71,12 +165,13 @@ public class Vcard21Parser {
 					System.err
 							.println("VCARD Parser warning: data seen before any VCARD:BEGIN");
 				} else {
-					datas.add(line);
+					// parsed as soon as unfolded, we do not keep the lines
+					datas.add(parseData(line, blob));
 				}
 			}
 		}
 
-		return contacts;
+		return null;
 	}
 
 	/**
@@ -90,50 +185,130 @@ public class Vcard21Parser {
 	 * @return the list of elements
 	 */
 	public static List<Data> parseData(Iterable<String> textData) {
+		return parseData(textData, null);
+	}
+
+	/**
+	 * Load the given data, whose binary values can already be known.
+	 * 
+	 * @param textData
+	 *            the input to load from
+	 * @param blobs
+	 *            the values of the lines (without value) whose value was left
+	 *            in their file, NULL for the others (or NULL if none)
+	 * 
+	 * @return the list of elements
+	 */
+	static List<Data> parseData(Iterable<String> textData, Iterable<Blob> blobs) {
 		List<Data> datas = new LinkedList<Data>();
 
+		Iterator<Blob> blobIterator = blobs == null ? null : blobs.iterator();
 		for (String line : textData) {
-			List<TypeInfo> types = new LinkedList<TypeInfo>();
-			String name = "";
-			String value = "";
-			String group = "";
-
-			if (line.contains(":")) {
-				int colIndex = line.indexOf(':');
-				String rest = line.substring(0, colIndex);
-				value = line.substring(colIndex + 1);
-
-				if (rest.contains(";")) {
-					String tab[] = rest.split(";");
-					name = tab[0];
-
-					for (int i = 1; i < tab.length; i++) {
-						if (tab[i].contains("=")) {
-							int equIndex = tab[i].indexOf('=');
-							String tname = tab[i].substring(0, equIndex);
-							String tvalue = tab[i].substring(equIndex + 1);
-							types.add(new TypeInfo(tname, tvalue));
-						} else {
-							types.add(new TypeInfo(tab[i], ""));
-						}
-					}
-				} else {
-					name = rest;
+			Blob blob = blobIterator == null ? null : blobIterator.next();
+			datas.add(parseData(line, blob));
+		}
+
+		return datas;
+	}
+
+	/**
+	 * Load the given (unfolded) line.
+	 * <p>
+	 * The line is read once, from left to right: its group and name (up to
+	 * the first <tt>;</tt> or <tt>:</tt>), its parameters (up to the next
+	 * <tt>;</tt> or <tt>:</tt> not in a quoted value, which keeps its quotes)
+	 * and its value (after the <tt>:</tt>).
+	 * 
+	 * @param line
+	 *            the line to load
+	 * @param blob
+	 *            the value of the line (without value) if it was left in its
+	 *            file, or NULL
+	 * 
+	 * @return the {@link Data}
+	 */
+	static Data parseData(String line, Blob blob) {
+		int length = line.length();
+
+		// group and name
+		int dot = -1;
+		int index = 0;
+		for (; index < length; index++) {
+			char car = line.charAt(index);
+			if (car == ';' || car == ':')
+				break;
+			if (car == '.' && dot < 0)
+				dot = index;
+		}
+		int nameEnd = index;
+
+		// parameters
+		List<TypeInfo> types = null;
+		int empty = 0; // the empty parameters not yet added
+		while (index < length && line.charAt(index) == ';') {
+			int start = ++index;
+
+			// the name of the parameter is not quoted, its value can be
+			int equ = -1;
+			for (; index < length; index++) {
+				char car = line.charAt(index);
+				if (car == ';' || car == ':') {
+					break;
+				} else if (car == '=') {
+					equ = index;
+					index = getParameterEnd(line, index + 1);
+					break;
 				}
-			} else {
-				name = line;
 			}
 
-			if (name.contains(".")) {
-				int dotIndex = name.indexOf('.');
-				group = name.substring(0, dotIndex);
-				name = name.substring(dotIndex + 1);
+			// like String#split(), ignore the empty parameters at the end
+			if (index == start) {
+				empty++;
+				continue;
+			}
+
+			if (types == null)
+				types = new ArrayList<TypeInfo>(2);
+			for (; empty > 0; empty--) {
+				types.add(new TypeInfo("", ""));
+			}
+
+			if (equ >= 0) {
+				types.add(new TypeInfo(line.substring(start, equ), line
+						.substring(equ + 1, index)));
+			} else {
+				types.add(new TypeInfo(line.substring(start, index), ""));
 			}
+		}
 
-			datas.add(new Data(types, name, value, group));
+		String value;
+		if (index < length) {
+			value = line.substring(index + 1);
+		} else {
+			// no value: the whole line is the name
+			types = null;
+			nameEnd = length;
+			dot = line.indexOf('.');
+			value = "";
 		}
 
-		return datas;
+		String group = "";
+		String name;
+		if (dot >= 0) {
+			group = line.substring(0, dot);
+			name = line.substring(dot + 1, nameEnd);
+		} else {
+			name = line.substring(0, nameEnd);
+		}
+
+		if (types == null)
+			types = Collections.emptyList();
+
+		if (blob != null) {
+			return new Data(types, name, blob, group);
+		}
+
+		return new Data(types, name, value, group);
 	}
 
 	/**
@@ -206,8 +381,14 @@ public class Vcard21Parser {
 		}
 		dataBuilder.append(':');
 
-		// TODO: bkey!
-		dataBuilder.append(data.getRawValue());
+		// a value still in its file is already folded, we copy it as is
+		FileBlob lazy = null;
+		if (data.getBlob() instanceof FileBlob) {
+			lazy = (FileBlob) data.getBlob();
+		} else {
+			// TODO: bkey!
+			dataBuilder.append(data.getRawValue());
+		}
 
 		// RFC says: Content lines SHOULD be folded to a maximum width of 75
 		// octets -> since it is SHOULD, we will just cut it as 74/75 chars
@@ -229,61 +410,107 @@ public class Vcard21Parser {
 			if (previous > 0)
 				writer.append(' ');
 			writer.append(dataBuilder, previous, index);
+			if (lazy == null || index < dataBuilder.length())
+				writer.append("\r\n");
+		}
+
+		if (lazy != null) {
+			lazy.copyTo(writer);
 			writer.append("\r\n");
 		}
 	}
 
 	/**
-	 * Clone the given {@link Card} by exporting then importing it again in VCF.
+	 * Clone the given {@link Card}.
 	 * 
 	 * @param c
 	 *            the {@link Card} to clone
 	 * 
 	 * @return the clone {@link Contact}
+	 * 
+	 * @deprecated the copy is now done in memory, use {@link Card#copy()}
 	 */
+	@Deprecated
 	public static Card clone(Card c) {
-		try {
-			File tmp = File.createTempFile("clone", ".vcf");
-			c.saveAs(tmp, Format.VCard21);
-
-			Card clone = new Card(tmp, Format.VCard21);
-			clone.unlink();
-			tmp.delete();
-
-			return clone;
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return null;
+		return c.copy();
 	}
 
 	/**
-	 * Clone the given {@link Contact} by exporting then importing it again in
-	 * VCF.
+	 * Clone the given {@link Contact}.
 	 * 
 	 * @param c
 	 *            the {@link Contact} to clone
 	 * 
 	 * @return the clone {@link Contact}
+	 * 
+	 * @deprecated the copy is now done in memory, use {@link Contact#copy()}
 	 */
+	@Deprecated
 	public static Contact clone(Contact c) {
-		try {
-			File tmp = File.createTempFile("clone", ".vcf");
-			FileWriter writer = new FileWriter(tmp);
-			write(writer, c, -1);
-			writer.close();
+		return c.copy();
+	}
 
-			Card clone = new Card(tmp, Format.VCard21);
-			clone.unlink();
-			tmp.delete();
+	/**
+	 * Check if the given (first) line of a data is binary, that is, if it has
+	 * the type <tt>ENCODING=b</tt>, and return where its value starts.
+	 * 
+	 * @param line
+	 *            the line to check
+	 * 
+	 * @return the index of the value in the line, or -1 if it is not binary
+	 *         (or its name and types are not complete in this line)
+	 */
+	private static int getBinaryValueIndex(String line) {
+		int length = line.length();
 
-			return clone.remove(0);
-		} catch (IOException e) {
-			e.printStackTrace();
+		int index = 0;
+		while (index < length && line.charAt(index) != ';'
+				&& line.charAt(index) != ':') {
+			index++;
 		}
 
-		return null;
+		boolean binary = false;
+		while (index < length && line.charAt(index) == ';') {
+			int start = ++index;
+			index = getParameterEnd(line, start);
+			if (index - start == 10
+					&& line.regionMatches(start, "ENCODING=b", 0, 10)) {
+				binary = true;
+			}
+		}
+
+		if (binary && index < length)
+			return index + 1;
+
+		return -1;
+	}
+
+	/**
+	 * Return the end of the parameter starting at the given position, that is,
+	 * the position of the next <tt>;</tt> or <tt>:</tt> not in a quoted value
+	 * (see {@link Vcard21Parser#parseData(String, Blob)}).
+	 * 
+	 * @param line
+	 *            the line
+	 * @param index
+	 *            the start of the parameter (or of its value)
+	 * 
+	 * @return the end of the parameter (excluded)
+	 */
+	private static int getParameterEnd(String line, int index) {
+		int length = line.length();
+		for (; index < length; index++) {
+			char car = line.charAt(index);
+			if (car == ';' || car == ':') {
+				break;
+			} else if (car == '"') {
+				int quote = line.indexOf('"', index + 1);
+				if (quote >= 0)
+					index = quote;
+			}
+		}
+
+		return index;
 	}
 
 	/**
@@ -0,0 +1,261 @@
+package be.nikiroo.jvcard.parsers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import be.nikiroo.jvcard.Data;
+import be.nikiroo.jvcard.TypeInfo;
+
+/**
+ * Compare the single-pass line tokenizer of {@link Vcard21Parser} with the
+ * <tt>split()</tt>-based one it replaced, on realistic VCard21 lines.
+ * <p>
+ * The lines are generated, and the lines of the VCard21 files given as
+ * arguments are added to them (the other arguments are ignored). Both
+ * tokenizers must give the same {@link Data} (except on the lines with quoted
+ * parameters, which <tt>split()</tt> does not support), then each is timed on
+ * all the lines a few times; the best round of each is kept.
+ *
+ * @author niki
+ */
+public class Vcard21ParserBenchmark {
+	/** The number of generated contacts */
+	static private final int CONTACTS = 20000;
+	/** The number of timed rounds (after as many warm-up rounds) */
+	static private final int ROUNDS = 10;
+
+	/**
+	 * Run the benchmark.
+	 *
+	 * @param args
+	 *            the VCard21 files to add to the generated lines
+	 *
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	public static void main(String[] args) throws IOException {
+		List<String> lines = generate(CONTACTS);
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.isFile())
+				lines.addAll(read(file));
+		}
+
+		String[] input = lines.toArray(new String[0]);
+		System.out.println("Lines: " + input.length);
+
+		int diffs = 0;
+		int quoted = 0;
+		for (String line : input) {
+			// split() cannot handle the quoted parameters, they will differ
+			if (line.indexOf('"') >= 0) {
+				quoted++;
+				continue;
+			}
+
+			if (!dump(parseDataSplit(line)).equals(
+					dump(Vcard21Parser.parseData(line, null)))) {
+				if (diffs++ < 10)
+					System.out.println("Different: " + line);
+			}
+		}
+
+		if (diffs > 0) {
+			System.out.println(diffs + " lines are not parsed the same way");
+			System.exit(1);
+		}
+
+		System.out.println("Lines with quoted parameters (not compared): "
+				+ quoted);
+
+		long[] split = new long[ROUNDS];
+		long[] single = new long[ROUNDS];
+		long sink = 0;
+		for (int round = -ROUNDS; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (String line : input) {
+				sink += parseDataSplit(line).size();
+			}
+			long middle = System.nanoTime();
+			for (String line : input) {
+				sink += Vcard21Parser.parseData(line, null).size();
+			}
+			long end = System.nanoTime();
+
+			if (round >= 0) {
+				split[round] = middle - start;
+				single[round] = end - middle;
+			}
+		}
+
+		Arrays.sort(split);
+		Arrays.sort(single);
+		System.out.println(String.format(
+				"split(): %d ns/line, single pass: %d ns/line, x%.2f (%d)",
+				split[0] / input.length, single[0] / input.length,
+				split[0] / (double) single[0], sink));
+	}
+
+	/**
+	 * The line tokenizer used before
+	 * {@link Vcard21Parser#parseData(String, be.nikiroo.jvcard.Blob)}, based
+	 * on {@link String#split(String)}.
+	 *
+	 * @param line
+	 *            the (unfolded) line to load
+	 *
+	 * @return the {@link Data}
+	 */
+	static private Data parseDataSplit(String line) {
+		List<TypeInfo> types = new LinkedList<TypeInfo>();
+		String name = "";
+		String value = "";
+		String group = "";
+
+		if (line.contains(":")) {
+			int colIndex = line.indexOf(':');
+			String rest = line.substring(0, colIndex);
+			value = line.substring(colIndex + 1);
+
+			if (rest.contains(";")) {
+				String tab[] = rest.split(";");
+				name = tab[0];
+
+				for (int i = 1; i < tab.length; i++) {
+					if (tab[i].contains("=")) {
+						int equIndex = tab[i].indexOf('=');
+						String tname = tab[i].substring(0, equIndex);
+						String tvalue = tab[i].substring(equIndex + 1);
+						types.add(new TypeInfo(tname, tvalue));
+					} else {
+						types.add(new TypeInfo(tab[i], ""));
+					}
+				}
+			} else {
+				name = rest;
+			}
+		} else {
+			name = line;
+		}
+
+		if (name.contains(".")) {
+			int dotIndex = name.indexOf('.');
+			group = name.substring(0, dotIndex);
+			name = name.substring(dotIndex + 1);
+		}
+
+		return new Data(types, name, value, group);
+	}
+
+	/**
+	 * Return a {@link String} with all the parts of the given {@link Data}.
+	 *
+	 * @param data
+	 *            the {@link Data}
+	 *
+	 * @return the {@link String}
+	 */
+	static private String dump(Data data) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(data.getGroup()).append('|').append(data.getName())
+				.append('|').append(data.getRawValue());
+		for (TypeInfo type : data) {
+			builder.append('|').append(type.getName()).append('=')
+					.append(type.getRawValue());
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Generate the (unfolded) lines of some realistic contacts.
+	 *
+	 * @param count
+	 *            the number of contacts
+	 *
+	 * @return the lines
+	 */
+	static private List<String> generate(int count) {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String family = "Family" + (i % 997);
+			String given = "Given" + i;
+
+			lines.add("BEGIN:VCARD");
+			lines.add("VERSION:2.1");
+			lines.add("N;CHARSET=UTF-8:" + family + ";" + given + ";;Dr.;");
+			lines.add("FN;CHARSET=UTF-8:" + given + " " + family);
+			lines.add("NICKNAME:nick" + i);
+			lines.add("TEL;TYPE=CELL;TYPE=PREF;PRE=1:+32 470 " + (100000 + i));
+			lines.add("TEL;TYPE=HOME:+32 2 " + (200000 + i));
+			lines.add("EMAIL;TYPE=INTERNET;TYPE=HOME:" + given.toLowerCase()
+					+ "@example.com");
+			lines.add("ADR;TYPE=HOME;CHARSET=UTF-8:;;" + i
+					+ " Main Street;Brussels;;1000;Belgium");
+			lines.add("LABEL;TYPE=HOME;ENCODING=QUOTED-PRINTABLE;CHARSET=UTF-8:"
+					+ i + " Main Street=0D=0A1000 Brussels");
+			lines.add("item1.URL:http\\://example.com/" + i);
+			lines.add("item1.X-ABLabel:_$!<HomePage>!$_");
+			if (i % 5 == 0) {
+				lines.add("LABEL;TYPE=HOME;X-NOTE=\"back door; code: " + i
+						+ "\":" + i + " Main Street");
+				lines.add("item2.X-ABLabel;X-TYPE=\"home:work\":_$!<Other>!$_");
+			}
+			lines.add("BDAY:19" + (50 + i % 50) + "-0" + (1 + i % 9) + "-1"
+					+ (i % 10));
+			lines.add("ORG:Company " + (i % 101) + ";Department");
+			lines.add("NOTE;ENCODING=QUOTED-PRINTABLE:Met at the conference=2C "
+					+ "see the notes for the details");
+			lines.add("PHOTO;ENCODING=b;TYPE=JPEG:/9j/4AAQSkZJRgABAQEASABIAAD");
+			lines.add("UID:" + Integer.toHexString(i * 7919) + "-jvcard");
+			lines.add("END:VCARD");
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Read the (unfolded) lines of the given VCard21 file.
+	 *
+	 * @param file
+	 *            the file
+	 *
+	 * @return the lines
+	 *
+	 * @throws IOException
+	 *             in case of I/O error
+	 */
+	static private List<String> read(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			StringBuilder line = null;
+			for (String ln = reader.readLine(); ln != null; ln = reader
+					.readLine()) {
+				if (line != null && ln.length() > 0
+						&& (ln.charAt(0) == ' ' || ln.charAt(0) == '\t')) {
+					line.append(ln.trim());
+				} else {
+					if (line != null)
+						lines.add(line.toString());
+					line = new StringBuilder(ln.trim());
+				}
+			}
+
+			if (line != null)
+				lines.add(line.toString());
+		} finally {
+			reader.close();
+		}
+
+		return lines;
+	}
+}
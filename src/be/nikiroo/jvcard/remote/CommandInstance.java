@@ -68,7 +68,7 @@ public class CommandInstance {
 
 				if (cmd == Command.VERSION) {
 					try {
-						version = Integer.parseInt(param);
+						this.version = Integer.parseInt(param);
 					} catch (NumberFormatException e) {
 						e.printStackTrace();
 					}
@@ -131,8 +131,17 @@ public class Server implements Runnable {
 						try {
 							ss.open(false);
 
-							while (processCmd(ss)) {
-								// nothing to do: process the command
+							// the content states cannot be compared across
+							// versions
+							int version = ss.getVersion();
+							if (version != SimpleSocket.CURRENT_VERSION) {
+								System.err.println("Refusing a client using "
+										+ "version " + version
+										+ " of the protocol");
+							} else {
+								while (processCmd(ss)) {
+									// nothing to do: process the command
+								}
 							}
 
 						} catch (IOException e) {
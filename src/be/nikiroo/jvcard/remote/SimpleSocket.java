@@ -69,8 +69,12 @@ public class SimpleSocket {
 
 	/**
 	 * The current version of the network protocol.
+	 * <p>
+	 * Version 2 changed the content states (see
+	 * {@link be.nikiroo.jvcard.BaseClass#getContentState(boolean)}), which
+	 * cannot be compared with the ones of version 1.
 	 */
-	static public final int CURRENT_VERSION = 1;
+	static public final int CURRENT_VERSION = 2;
 
 	/**
 	 * The end of block marker.
@@ -144,6 +148,16 @@ public class SimpleSocket {
 		}
 	}
 
+	/**
+	 * Return the version of the protocol used by the other end, as negotiated
+	 * by {@link SimpleSocket#open(boolean)}.
+	 * 
+	 * @return the version, or -1 if unknown
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	/**
 	 * Close the connection and release acquired resources.
 	 * 
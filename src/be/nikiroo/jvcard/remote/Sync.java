@@ -188,6 +188,14 @@ public class Sync {
 		boolean serverChanges = false;
 		try {
 			s.open(true);
+
+			// the content states cannot be compared across versions
+			if (s.getVersion() != SimpleSocket.CURRENT_VERSION) {
+				throw new IOException("The server uses version "
+						+ s.getVersion() + " of the protocol, version "
+						+ SimpleSocket.CURRENT_VERSION + " is needed");
+			}
+
 			s.sendCommand(Command.LIST_CARD);
 			List<String> timestampedFiles = s.receiveBlock();
 
@@ -306,27 +314,18 @@ public class Sync {
 					// note: we are holding the server here, so it could throw
 					// us away if we take too long
 
-					// TODO: check if those files are deleted
-					File mergeF = File.createTempFile("contact-merge", ".vcf");
-					File serverF = File
-							.createTempFile("contact-server", ".vcf");
-					original.saveAs(serverF, Format.VCard21);
-
-					Card server = new Card(serverF, Format.VCard21);
+					Card server = original.copy();
 					updateFromServer(s, server);
 
 					// Do an auto sync
-					server.saveAs(mergeF, Format.VCard21);
-					Card merge = new Card(mergeF, Format.VCard21);
+					Card merge = server.copy();
 					List<Contact> added = new LinkedList<Contact>();
 					List<Contact> removed = new LinkedList<Contact>();
 					original.compare(local, added, removed, removed, added);
 					for (Contact c : removed)
 						merge.getById(c.getId()).delete();
 					for (Contact c : added)
-						merge.add(Vcard21Parser.clone(c));
-
-					merge.save();
+						merge.add(c.copy());
 
 					// defer to client:
 					if (callback == null) {
@@ -197,7 +197,7 @@ public class ContactDetails extends MainContent {
 						&& encoding.getValue().equalsIgnoreCase("b")) {
 					try {
 						be.nikiroo.utils.Image img = new be.nikiroo.utils.Image(
-								photo.getValue());
+								photo.getBlob().getBytes());
 						try {
 							image = ImageUtilsAwt.fromImage(img);
 						} finally {
@@ -6,6 +6,7 @@ import java.util.List;
 
 import be.nikiroo.jvcard.Card;
 import be.nikiroo.jvcard.Contact;
+import be.nikiroo.jvcard.ContactFormat;
 import be.nikiroo.jvcard.Data;
 import be.nikiroo.jvcard.launcher.Main;
 import be.nikiroo.jvcard.resources.ColorOption;
@@ -23,17 +24,14 @@ public class ContactList extends MainContentList {
 	private List<Contact> contacts;
 	private String filter;
 
-	private List<String> formats;
+	private List<ContactFormat> formats;
 	private int selectedFormat;
-	private String format;
+	private ContactFormat format;
 
 	public ContactList(Card card) {
 		DisplayBundle map = new DisplayBundle();
-		formats = new LinkedList<String>();
-		for (String format : map.getString(DisplayOption.CONTACT_LIST_FORMAT)
-				.split(",")) {
-			formats.add(format);
-		}
+		formats = ContactFormat.compileList(map
+				.getString(DisplayOption.CONTACT_LIST_FORMAT));
 
 		selectedFormat = -1;
 		switchFormat();
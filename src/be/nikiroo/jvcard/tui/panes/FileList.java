@@ -171,7 +171,7 @@ public class FileList extends MainContentList {
 								mfiles.add(s.getAbsolutePath());
 								merger = new FileList(mfiles);
 								merger.mergeRemoteState = arr[2]
-										.getContentState(false);
+										.getLocalContentState(false);
 								merger.mergeSourceFile = files.get(index);
 								merger.mergeTargetFile = a;
 
@@ -227,7 +227,7 @@ public class FileList extends MainContentList {
 					public Card merge(Card previous, Card local, Card server,
 							Card autoMerged) {
 						try {
-							if (server.getContentState(false).equals(
+							if (server.getLocalContentState(false).equals(
 									merger.mergeRemoteState)) {
 								return new Card(merger.mergeTargetFile,
 										Format.VCard21);
@@ -2,7 +2,6 @@ package be.nikiroo.jvcard.tui.windows;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 import jexer.TAction;
@@ -11,15 +10,16 @@ import jexer.TKeypress;
 import jexer.TWindow;
 import be.nikiroo.jvcard.Card;
 import be.nikiroo.jvcard.Contact;
+import be.nikiroo.jvcard.ContactFormat;
 import be.nikiroo.jvcard.resources.DisplayBundle;
 import be.nikiroo.jvcard.resources.DisplayOption;
 
 public class TuiContactListWindow extends TuiBrowserWindow {
 	private Card card;
 	private String filter;
-	private List<String> formats;
+	private List<ContactFormat> formats;
 	private int selectedFormat;
-	private String format;
+	private ContactFormat format;
 
 	public TuiContactListWindow(TuiBasicWindow parent, Card card) {
 		super(parent, "Contacts", false);
@@ -28,11 +28,8 @@ public class TuiContactListWindow extends TuiBrowserWindow {
 		this.selectedFormat = -1;
 
 		DisplayBundle map = new DisplayBundle();
-		formats = new LinkedList<String>();
-		for (String format : map.getString(DisplayOption.CONTACT_LIST_FORMAT)
-				.split(",")) {
-			formats.add(format);
-		}
+		formats = ContactFormat.compileList(map
+				.getString(DisplayOption.CONTACT_LIST_FORMAT));
 
 		addKeyBinding(TKeypress.kbQ, "Quit", new TAction() {
 			@Override
@@ -64,7 +61,7 @@ public class TuiContactListWindow extends TuiBrowserWindow {
 
 	private void setCard(Card card) {
 		List<String> headers = new ArrayList<String>();
-		for (String field : format.split("\\|")) {
+		for (String field : format.getFields()) {
 			headers.add(field);
 		}
 